@@ -0,0 +1,131 @@
+package reviewbranch.apis;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+
+import reviewbranch.commands.ReviewCommand;
+
+/**
+ * A generated local git repo, for benchmarks that run against real git.
+ *
+ * It has {@code commits} commits on top of {@code origin/master}, each changing its own file, so that
+ * {@link Git#getRevisionsFromOriginMaster()} sees all of them.
+ */
+public class BenchmarkRepo {
+
+  public final File dir;
+
+  public static BenchmarkRepo create(int commits, int linesPerCommit) {
+    try {
+      BenchmarkRepo repo = new BenchmarkRepo(Files.createTempDirectory("review-branch-bench").toFile());
+      repo.git("init", "-q");
+      repo.git("config", "user.name", "bench");
+      repo.git("config", "user.email", "bench@example.com");
+      repo.commit("base.txt", 1, "base");
+      repo.git("update-ref", "refs/remotes/origin/master", "HEAD");
+      for (int i = 0; i < commits; i++) {
+        repo.commit("file" + i + ".txt", linesPerCommit, "commit " + i + "\n\nBUG=FOO-" + i);
+      }
+      return repo;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private BenchmarkRepo(File dir) {
+    this.dir = dir;
+  }
+
+  /** Forgets any RBs from previous runs, so the next review creates them all again. */
+  public void resetReviewState() {
+    for (String ref : new String[] { "reviewid", "reviewlasthash" }) {
+      // update-ref -d is a no-op if the ref doesn't exist
+      git("update-ref", "-d", "refs/notes/" + ref);
+    }
+    new File(dir, ".git/review-branch/diff-index").delete();
+  }
+
+  public void delete() {
+    try {
+      for (Path p : (Iterable<Path>) Files.walk(dir.toPath()).sorted(Comparator.reverseOrder())::iterator) {
+        Files.delete(p);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Stops the cat-file processes of any {@link GitImpl}s that were used against this repo. */
+  public static void closeProcesses() {
+    CatFile.closeAll();
+  }
+
+  private void commit(String path, int lines, String message) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < lines; i++) {
+      sb.append("line ").append(i).append(" of ").append(path).append('\n');
+    }
+    Files.write(new File(dir, path).toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    git("add", path);
+    git("commit", "-q", "-m", message);
+  }
+
+  private void git(String... args) {
+    String[] command = new String[args.length + 1];
+    command[0] = "git";
+    System.arraycopy(args, 0, command, 1, args.length);
+    try {
+      Process p = new ProcessBuilder(command).directory(dir).redirectOutput(Redirect.INHERIT).redirectError(Redirect.INHERIT).start();
+      if (p.waitFor() != 0) {
+        throw new IllegalStateException("git failed");
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  /** A {@link ReviewBoard} that hands out increasing RB ids without talking to a server. */
+  public static class StubReviewBoard implements ReviewBoard {
+    private int nextId = 1;
+
+    @Override
+    public String createNewRbForCurrentCommit(ReviewCommand args, String currentBranch, Optional<String> dependsOn, Optional<String> bugId) {
+      return String.valueOf(nextId++);
+    }
+
+    @Override
+    public void updateRbForCurrentCommit(ReviewCommand args, String rbId, Optional<String> dependsOn) {
+    }
+
+    @Override
+    public void updateDependsOnForCurrentCommit(ReviewCommand args, String rbId, String dependsOn) {
+    }
+
+    @Override
+    public boolean canUpdateDependsOnAlone() {
+      return true;
+    }
+
+    @Override
+    public String getDcommitMessage(String rbId, String revision) {
+      return "stamped";
+    }
+
+    @Override
+    public boolean isApproved(String rbId) {
+      return true;
+    }
+
+    @Override
+    public ReviewBoard inWorkTree(File dir) {
+      return this;
+    }
+  }
+
+}
@@ -0,0 +1,61 @@
+package reviewbranch.apis;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the per-call overhead of {@link GitImpl}: reads served by the cat-file pipes vs. ones that fork git.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GitImplBenchmark {
+
+  private BenchmarkRepo repo;
+  private GitImpl git;
+
+  @Setup
+  public void setup() {
+    repo = BenchmarkRepo.create(10, 100);
+    git = new GitImpl(repo.dir);
+    git.setNote("reviewid", "HEAD~1", "1");
+    git.flushNotes();
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkRepo.closeProcesses();
+    repo.delete();
+  }
+
+  @Benchmark
+  public String getCommitMessage() {
+    // not from getRevisionsFromOriginMaster, so this isn't served by its cache
+    return git.getCommitMessage("HEAD~1");
+  }
+
+  @Benchmark
+  public String getTreeId() {
+    return git.getTreeId("HEAD~1");
+  }
+
+  @Benchmark
+  public Optional<String> getNote() {
+    return git.getNote("reviewid", "HEAD~1");
+  }
+
+  @Benchmark
+  public String getCurrentBranch() {
+    return git.getCurrentBranch();
+  }
+
+}
@@ -0,0 +1,89 @@
+package reviewbranch.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.GitImpl;
+
+/** Measures {@link ReviewCommand#hashDiff}, with and without the legacy hash, over synthetic diffs, without forking git. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HashingBenchmark {
+
+  @Param({ "1024", "1048576", "104857600" })
+  public int size;
+
+  private Git git;
+
+  @Setup
+  public void setup() {
+    git = new SyntheticDiffGit(syntheticDiff(size));
+  }
+
+  @TearDown
+  public void tearDown() {
+    git.close();
+  }
+
+  @Benchmark
+  public String legacyHash() {
+    return ReviewCommand.hashDiff(git, "HEAD", true)[1];
+  }
+
+  @Benchmark
+  public String fingerprint() {
+    return ReviewCommand.hashDiff(git, "HEAD", false)[0];
+  }
+
+  /** A {@link GitImpl} whose every diff is {@code diff}, so hashing is measured without forking git. */
+  private static class SyntheticDiffGit extends GitImpl {
+    private final byte[] diff;
+
+    private SyntheticDiffGit(byte[] diff) {
+      this.diff = diff;
+    }
+
+    @Override
+    public void writeDiff(String revision, OutputStream out) {
+      try {
+        out.write(diff);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** @return a {@code -U0} style diff of about {@code size} bytes, with a file header and index line every ~4 KB */
+  static byte[] syntheticDiff(int size) {
+    StringBuilder sb = new StringBuilder(size + 4096);
+    for (int file = 0; sb.length() < size; file++) {
+      sb.append("diff --git a/File").append(file).append(".java b/File").append(file).append(".java\n");
+      sb.append("index 226fa5b..bd372b0 100644\n");
+      sb.append("--- a/File").append(file).append(".java\n");
+      sb.append("+++ b/File").append(file).append(".java\n");
+      for (int hunk = 0; hunk < 50 && sb.length() < size; hunk++) {
+        sb.append("@@ -").append(hunk * 10).append(" +").append(hunk * 10).append(",2 @@\n");
+        sb.append("+  private final String field").append(hunk).append(" = \"generated\";\n");
+        sb.append("+  private final int other").append(hunk).append(" = ").append(hunk).append(";\n");
+      }
+    }
+    sb.setLength(size);
+    return sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,53 @@
+package reviewbranch.commands;
+
+import java.util.HashMap;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import reviewbranch.apis.NotesSnapshot;
+import reviewbranch.apis.ReviewId;
+
+/** Measures the commit message scans, with the {@code RB=}/{@code A=} lines at the end as the worst case. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MessageBenchmark {
+
+  @Param({ "1024", "1048576", "104857600" })
+  public int size;
+
+  private final NotesSnapshot noNotes = new NotesSnapshot(new HashMap<>());
+  private String message;
+
+  @Setup
+  public void setup() {
+    StringBuilder sb = new StringBuilder(size + 64);
+    sb.append("Summary of the change.\n\n");
+    while (sb.length() < size) {
+      sb.append("Some description of what changed and why, wrapped at a sensible width.\n");
+    }
+    sb.setLength(size);
+    sb.append("\n\nRB=123\nA=bob");
+    message = sb.toString();
+  }
+
+  @Benchmark
+  public Optional<String> reviewIdFromMessage() {
+    return ReviewId.getFromNoteOrCommitMessage(noNotes, "HEAD", message);
+  }
+
+  @Benchmark
+  public boolean approvalScan() {
+    return MergeApprovedCommand.approvalPattern.matcher(message).find();
+  }
+
+}
@@ -0,0 +1,70 @@
+package reviewbranch.commands;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import reviewbranch.apis.BenchmarkRepo;
+import reviewbranch.apis.GitImpl;
+
+/** Runs {@code review} end to end against a generated repo, with a stub {@link reviewbranch.apis.ReviewBoard}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReviewBenchmark {
+
+  @Param({ "10", "100" })
+  public int commits;
+
+  private BenchmarkRepo repo;
+
+  @Setup
+  public void setup() {
+    repo = BenchmarkRepo.create(commits, 100);
+    // so reviewUnchanged starts out with every RB already uploaded
+    review();
+  }
+
+  @TearDown
+  public void tearDown() {
+    repo.delete();
+  }
+
+  /** Forgets the previous run's RBs before each {@link ReviewBenchmark#reviewNew} invocation. */
+  @State(Scope.Thread)
+  public static class Fresh {
+    @Setup(Level.Invocation)
+    public void reset(ReviewBenchmark b) {
+      b.repo.resetReviewState();
+    }
+  }
+
+  @Benchmark
+  public void reviewNew(Fresh fresh) {
+    review();
+  }
+
+  @Benchmark
+  public void reviewUnchanged() {
+    review();
+  }
+
+  private void review() {
+    // like a real run, each review starts with a new GitImpl (and its own cat-file processes)
+    try {
+      new ReviewCommand().run(new GitImpl(repo.dir), new BenchmarkRepo.StubReviewBoard());
+    } finally {
+      BenchmarkRepo.closeProcesses();
+    }
+  }
+
+}
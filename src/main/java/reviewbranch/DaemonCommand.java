@@ -0,0 +1,133 @@
+package reviewbranch;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.rvesse.airline.annotations.Command;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.GitImpl;
+import reviewbranch.apis.Metrics;
+
+/**
+ * Stays running in a checkout and serves the {@code review-branch} script's commands from a warm JVM.
+ *
+ * The {@link Git}s (with their cat-file processes, rev list and notes) and ReviewBoard's keep-alive connections are
+ * reused across commands. Java 8 has no Unix domain sockets, so the daemon listens on a random loopback port, and
+ * writes the port, a random token and the checkout to {@code .git/review-branch/daemon} (readable only by the user);
+ * clients have to send the token first.
+ *
+ * Requests are the NUL-terminated token, argument count and arguments; the response is the command's output, then a
+ * {@code review-branch-exit: <code>} line. Commands are run one at a time. Their stdout and stderr both go to the
+ * client, including the stderr of the git processes they start.
+ */
+@Command(name = "daemon", description = "Serves commands for this checkout from a warm JVM, until killed")
+public class DaemonCommand implements Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(DaemonCommand.class);
+  static final String exitPrefix = "review-branch-exit: ";
+
+  // keyed by --jgit and --base
+  private final Map<String, Git> gits = new HashMap<>();
+
+  @Override
+  public void run() {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      String token = new BigInteger(130, new SecureRandom()).toString(32);
+      File file;
+      try (Git git = new GitImpl()) {
+        file = new File(git.getGitDir(), "review-branch/daemon");
+      }
+      writeDaemonFile(file, server.getLocalPort() + " " + token + " " + new File("").getCanonicalPath() + "\n");
+      file.deleteOnExit();
+      log.info("Listening on 127.0.0.1:{}", server.getLocalPort());
+      while (true) {
+        try (Socket socket = server.accept()) {
+          serve(socket, token);
+        } catch (IOException | RuntimeException e) {
+          // e.g. a malformed request, which shouldn't take the daemon down
+          log.warn("Request failed", e);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void serve(Socket socket, String token) throws IOException {
+    InputStream in = new BufferedInputStream(socket.getInputStream());
+    if (!token.equals(readField(in))) {
+      log.warn("Ignoring a request with the wrong token");
+      return;
+    }
+    String[] args = new String[Integer.parseInt(readField(in))];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = readField(in);
+    }
+
+    // logback's console appender writes to whatever System.out currently is, so this sends the client the logs too
+    PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    System.setOut(out);
+    System.setErr(out);
+    int exit = 0;
+    try {
+      if (args.length > 0 && args[0].equals("daemon")) {
+        throw new IllegalArgumentException("The daemon is already running");
+      }
+      Metrics.reset();
+      ReviewBranch.run(args, c -> gits.computeIfAbsent(c.jgit + " " + c.base + " " + c.exclude, key -> c.createGit()));
+    } catch (RuntimeException e) {
+      e.printStackTrace(out);
+      exit = 1;
+    } finally {
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+    out.println(exitPrefix + exit);
+    out.flush();
+  }
+
+  /** @return the next NUL-terminated UTF-8 string from {@code in} */
+  static String readField(InputStream in) throws IOException {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    for (int b = in.read(); b != 0; b = in.read()) {
+      if (b == -1) {
+        throw new IOException("Request ended early");
+      }
+      field.write(b);
+    }
+    return new String(field.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static void writeDaemonFile(File file, String contents) throws IOException {
+    file.getParentFile().mkdirs();
+    Files.deleteIfExists(file.toPath());
+    // create it private before the token goes in
+    Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    try (Writer w = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+      w.write(contents);
+    }
+  }
+
+}
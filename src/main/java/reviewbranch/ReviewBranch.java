@@ -1,5 +1,8 @@
 package reviewbranch;
 
+import java.io.File;
+import java.util.function.Function;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,9 +11,8 @@ import com.github.rvesse.airline.builder.CliBuilder;
 import com.github.rvesse.airline.help.Help;
 
 import reviewbranch.apis.Git;
-import reviewbranch.apis.GitImpl;
+import reviewbranch.apis.Metrics;
 import reviewbranch.apis.ReviewBoard;
-import reviewbranch.apis.ReviewBoardImpl;
 import reviewbranch.commands.AbstractCommand;
 import reviewbranch.commands.DCommitCommand;
 import reviewbranch.commands.MergeApprovedCommand;
@@ -23,23 +25,36 @@ public class ReviewBranch {
 
   private static final Logger log = LoggerFactory.getLogger(ReviewBranch.class);
 
-  private static final Git git = new GitImpl();
-  private static final ReviewBoard rb = new ReviewBoardImpl();
-
   public static void main(String[] stringArgs) {
+    run(stringArgs, AbstractCommand::createGit);
+  }
+
+  /** Parses and runs one command line, getting the command's {@link Git} from {@code gits} (which the daemon reuses). */
+  static void run(String[] stringArgs, Function<AbstractCommand, Git> gits) {
     CliBuilder<Object> b = Cli.<Object> builder("review-branch").withDescription("creates lots of RBs");
     b.withCommand(ReviewCommand.class);
     b.withCommand(DCommitCommand.class);
     b.withCommand(MergeApprovedCommand.class);
+    b.withCommand(DaemonCommand.class);
     b.withDefaultCommand(Help.class);
 
     Object command = b.build().parse(stringArgs);
     if (command instanceof AbstractCommand) {
+      AbstractCommand c = (AbstractCommand) command;
+      Git git = Metrics.wrap(Git.class, gits.apply(c));
       if (!git.isWorkingCopyClean()) {
         log.error("Your working copy is not clean; ensure all changes are committed or stashed.");
       } else {
-        ((AbstractCommand) command).ensureGitNotesConfigured(git);
-        ((AbstractCommand) command).run(git, rb);
+        ReviewBoard rb = Metrics.wrap(ReviewBoard.class, c.createReviewBoard(git));
+        c.ensureGitNotesConfigured(git);
+        try {
+          c.run(git, rb);
+        } finally {
+          log.info("Timings:\n{}", Metrics.summary());
+          if (c.metricsOut != null) {
+            Metrics.writeJson(new File(c.metricsOut));
+          }
+        }
       }
     } else {
       ((Runnable) command).run();
@@ -0,0 +1,157 @@
+package reviewbranch.apis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A long-lived {@code git cat-file --batch} (or {@code --batch-check}) coprocess.
+ *
+ * Lookups are a round-trip over the process's pipes instead of a fork+exec of {@code git}, which on large repos has to
+ * re-open the index and packs each time. Instances are not thread-safe, so {@link GitImpl} lends them out one thread at
+ * a time from a {@link CatFilePool}, and closes them with itself; any still open are closed when the JVM exits.
+ */
+class CatFile implements Closeable {
+
+  private static final List<CatFile> open = new CopyOnWriteArrayList<>();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread(CatFile::closeAll));
+  }
+
+  private final boolean contents;
+  private final Process process;
+  private final OutputStream in;
+  private final InputStream out;
+
+  /** @return a {@code git cat-file --batch} process, run in {@code dir} (or the cwd if null), that returns object contents */
+  static CatFile batch(File dir) {
+    return new CatFile(dir, true);
+  }
+
+  /** @return a {@code git cat-file --batch-check} process, run in {@code dir} (or the cwd if null), that only returns object ids/types/sizes */
+  static CatFile batchCheck(File dir) {
+    return new CatFile(dir, false);
+  }
+
+  static void closeAll() {
+    for (CatFile catFile : open) {
+      catFile.close();
+    }
+  }
+
+  private CatFile(File dir, boolean contents) {
+    this.contents = contents;
+    try {
+      process = new ProcessBuilder("git", "cat-file", contents ? "--batch" : "--batch-check") //
+        .directory(dir)
+        .start();
+      Metrics.recordSpawn();
+      // long-lived, so nothing waits for this; it ends when the process does
+      StderrPump.start(process);
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+    in = new BufferedOutputStream(process.getOutputStream());
+    out = new BufferedInputStream(process.getInputStream());
+    open.add(this);
+  }
+
+  /** @return the full object id of {@code object} (any rev expression), or empty if it doesn't exist */
+  Optional<String> objectId(String object) {
+    return header(object).map(h -> h[0]);
+  }
+
+  /** @return the size in bytes of {@code object}, or empty if it doesn't exist; only for a --batch-check process */
+  Optional<Long> size(String object) {
+    if (contents) {
+      throw new IllegalStateException("size requires a --batch-check process");
+    }
+    return header(object).map(h -> Long.parseLong(h[2]));
+  }
+
+  /** @return the raw contents of {@code object}, or empty if it doesn't exist */
+  Optional<byte[]> contents(String object) {
+    if (!contents) {
+      throw new IllegalStateException("contents requires a --batch process");
+    }
+    Optional<String[]> header = header(object);
+    if (!header.isPresent()) {
+      return Optional.empty();
+    }
+    try {
+      int size = Integer.parseInt(header.get()[2]);
+      byte[] bytes = new byte[size];
+      int read = 0;
+      while (read < size) {
+        int n = out.read(bytes, read, size - read);
+        if (n == -1) {
+          throw new IllegalStateException("git cat-file exited unexpectedly");
+        }
+        read += n;
+      }
+      // each object is followed by a newline
+      out.read();
+      Metrics.recordBytesRead(size + 1);
+      return Optional.of(bytes);
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  /** @return the contents of {@code object} decoded as UTF-8, or empty if it doesn't exist */
+  Optional<String> contentsAsString(String object) {
+    return contents(object).map(b -> new String(b, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close() {
+    open.remove(this);
+    try {
+      in.close();
+    } catch (IOException e) {
+      // the process is already gone
+    }
+    process.destroy();
+  }
+
+  private Optional<String[]> header(String object) {
+    if (object.contains("\n")) {
+      throw new IllegalArgumentException("Invalid object name " + object);
+    }
+    try {
+      in.write((object + "\n").getBytes(StandardCharsets.UTF_8));
+      in.flush();
+      String line = readLine();
+      // either "<object> missing", "<object> ambiguous", or "<oid> <type> <size>"
+      if (line.endsWith(" missing") || line.endsWith(" ambiguous")) {
+        return Optional.empty();
+      }
+      return Optional.of(line.split(" "));
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    for (int b = out.read(); b != '\n'; b = out.read()) {
+      if (b == -1) {
+        throw new IllegalStateException("git cat-file exited unexpectedly");
+      }
+      line.write(b);
+    }
+    Metrics.recordBytesRead(line.size() + 1);
+    return new String(line.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,76 @@
+package reviewbranch.apis;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The {@link CatFile}s of one {@link GitImpl}, which owns them and closes them with itself.
+ *
+ * Each lookup borrows an idle process (starting one if every process is busy, i.e. another thread is mid-lookup), so
+ * there are never more processes than threads that used this {@link GitImpl} at once, and none outlive it.
+ */
+class CatFilePool implements Closeable {
+
+  private final File dir;
+  private final boolean contents;
+  private final Deque<CatFile> idle = new ArrayDeque<>();
+  private final List<CatFile> all = new ArrayList<>();
+  private boolean closed;
+
+  /** @param contents whether to start {@code --batch} processes, otherwise {@code --batch-check} */
+  CatFilePool(File dir, boolean contents) {
+    this.dir = dir;
+    this.contents = contents;
+  }
+
+  /** @return {@code lookup}'s result, run against a process that no other thread is using */
+  <T> T with(Function<CatFile, T> lookup) {
+    CatFile catFile = borrow();
+    boolean ok = false;
+    try {
+      T result = lookup.apply(catFile);
+      ok = true;
+      return result;
+    } finally {
+      giveBack(catFile, ok);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    for (CatFile catFile : all) {
+      catFile.close();
+    }
+    all.clear();
+    idle.clear();
+  }
+
+  private synchronized CatFile borrow() {
+    if (closed) {
+      throw new IllegalStateException("git cat-file used after close");
+    }
+    CatFile catFile = idle.poll();
+    if (catFile == null) {
+      catFile = contents ? CatFile.batch(dir) : CatFile.batchCheck(dir);
+      all.add(catFile);
+    }
+    return catFile;
+  }
+
+  private synchronized void giveBack(CatFile catFile, boolean ok) {
+    // after a failure the process may be mid-response (or gone), so don't reuse it
+    if (ok && !closed) {
+      idle.push(catFile);
+    } else {
+      all.remove(catFile);
+      catFile.close();
+    }
+  }
+
+}
@@ -1,38 +1,117 @@
 package reviewbranch.apis;
 
+import java.io.File;
+import java.io.OutputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
-public interface Git {
+public interface Git extends AutoCloseable {
 
   String getCurrentBranch();
 
-  String getCurrentCommitMessage();
+  String getCurrentCommit();
 
-  String getCurrentDiff();
+  String getCommitMessage(String revision);
 
-  String getCurrentCommit();
+  String getTreeId(String revision);
+
+  /** Streams the {@code -U0} diff of {@code revision} to {@code out}, without holding it in memory. */
+  void writeDiff(String revision, OutputStream out);
+
+  /**
+   * @return the pathspecs that are left out of every diff (and so of hashing, patch ids and uploads): {@code --exclude}'s,
+   *         then the lines of {@code .reviewbranchignore} next to the {@code .git} directory
+   */
+  List<String> getExcludes();
+
+  /**
+   * Streams the full-context, full-index diff of {@code from..to} that ReviewBoard expects to be uploaded to {@code out},
+   * byte for byte as git wrote it.
+   */
+  void writeReviewDiff(String from, String to, OutputStream out);
+
+  /**
+   * @return the {@code git patch-id --stable} of each of {@code revisions} (keyed as given) that has a diff, from one
+   *         {@code git log -p | git patch-id} pass over all of them
+   */
+  Map<String, String> getPatchIds(List<String> revisions);
+
+  /**
+   * @return each path that {@code revision} adds, changes or deletes, with its new size in bytes (0 if deleted), from
+   *         the trees alone, without generating the diff
+   */
+  Map<String, Long> getChangedPaths(String revision);
 
   void amendCurrentCommitMessage(String newMessage);
 
+  /** @return the (full) ids of the commits on HEAD that aren't on {@link #getBase()}, oldest first */
   List<String> getRevisionsFromOriginMaster();
 
+  /** @return the commits on {@code branch} that aren't on {@link #getBase()}, oldest first, like {@link #getRevisionsFromOriginMaster()} does for HEAD */
+  List<String> getRevisionsFromOriginMaster(String branch);
+
+  /** @return the ref our branches are reviewed and merged against: {@code --base}, {@code reviewbranch.base}, or origin/master */
+  String getBase();
+
+  /** @return whether {@code revision} is reachable from {@link #getBase()}, i.e. it's been merged; false if it doesn't exist (any more) */
+  boolean isMerged(String revision);
+
+  /** @return the (full) id of the commit where {@code revision} forked from {@link #getBase()} */
+  String getMergeBase(String revision);
+
+  /** @return the names of all local branches */
+  List<String> getLocalBranches();
+
   void checkout(String revision);
 
   void mergeFf(String revision);
 
+  /** Moves {@code branch} forward to {@code revision} without checking it out; fails if it's not a fast-forward. */
+  void fastForward(String branch, String revision);
+
   void resetHard(String revision);
 
-  void cherryPick(String revision);
+  /**
+   * @return the id of a new commit with {@code revision}'s tree, author and committer, but on {@code parent} and with
+   *         {@code message}; nothing is checked out
+   */
+  String rewriteCommit(String revision, String parent, String message);
+
+  /** Points HEAD (i.e. the current branch) at {@code revision} if it's still at {@code oldRevision}, leaving the index and working copy alone. */
+  void updateHead(String revision, String oldRevision);
 
   boolean isWorkingCopyClean();
 
+  /** @return the repository's (common) {@code .git} directory */
+  File getGitDir();
+
+  /**
+   * @return the {@code .git} directory of the worktree we run in, where its HEAD and rebase state live; the same as
+   *         {@link #getGitDir()} except in a linked worktree, where it's {@code .git/worktrees/<name>}
+   */
+  File getWorkTreeGitDir();
+
+  /** Creates (or reuses) a worktree at {@code dir} on {@code branch}, and returns a {@link Git} that runs in it. */
+  Git addWorkTree(File dir, String branch);
+
   List<String> getMultipleValueConfig(String key);
 
   void addMultipleValueConfig(String key, String value);
 
-  Optional<String> getNote(String ref);
+  Optional<String> getNote(String ref, String revision);
+
+  /** @return all of the notes on {@code refs/notes/<ref>}, for commands that look up many commits */
+  NotesSnapshot getNotes(String ref);
+
+  /** Buffers a note change; it's not written to {@code refs/notes/<ref>} until {@link #flushNotes()}. */
+  void setNote(String ref, String revision, String value);
+
+  /** Writes all buffered note changes, as one notes commit per ref. */
+  void flushNotes();
 
-  void setNote(String ref, String value);
+  /** Stops any processes this {@link Git} started, e.g. for a worktree's {@link Git} once the command is done with it. */
+  @Override
+  void close();
 
 }
@@ -2,18 +2,95 @@ package reviewbranch.apis;
 
 import static org.apache.commons.lang3.StringUtils.chomp;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.apache.commons.lang3.StringUtils;
 import org.jooq.lambda.Seq;
 
+import com.google.common.io.ByteStreams;
+
 import joist.util.Execute;
 import joist.util.Execute.BufferedResult;
 
 public class GitImpl implements Git {
 
+  // null means the current directory
+  private final File workTree;
+  // null means reviewbranch.base, or origin/master
+  private final String base;
+  // --exclude pathspecs; .reviewbranchignore's are read on each use, so the daemon sees edits
+  private final List<String> excludes;
+  // whether we're one of addWorkTree's worktrees, which only check out what info/sparse-checkout lists
+  private final boolean sparse;
+  private volatile File gitDir;
+
+  // commit messages keyed by full hash, filled in by the single `git log` pass over our revisions
+  private final Map<String, String> messages = new HashMap<>();
+  // object/note lookups go through long-lived cat-file processes instead of forking git each time; closed with us
+  private final CatFilePool batch;
+  private final CatFilePool batchCheck;
+  // note changes by ref, then full commit hash, buffered until flushNotes
+  private final Map<String, Map<String, String>> pendingNotes = new LinkedHashMap<>();
+  // rev lists keyed by the base and tip ids they were listed from, shared with other runs via .git/review-branch
+  private RevisionCache revisions;
+  // in a long-lived process (i.e. the daemon), the last notes read, keyed by the ids they were read at
+  private final Map<String, String> notesKeys = new HashMap<>();
+  private final Map<String, Map<String, String>> notesByRef = new HashMap<>();
+
+  public GitImpl() {
+    this(null);
+  }
+
+  /** @param workTree the directory to run git in, e.g. a {@code git worktree} */
+  public GitImpl(File workTree) {
+    this(workTree, null);
+  }
+
+  /**
+   * @param workTree the directory to run git in, e.g. a {@code git worktree}
+   * @param base the ref our revisions start from, or null to use {@code reviewbranch.base} (or origin/master)
+   */
+  public GitImpl(File workTree, String base) {
+    this(workTree, base, Collections.emptyList());
+  }
+
+  /**
+   * @param workTree the directory to run git in, e.g. a {@code git worktree}
+   * @param base the ref our revisions start from, or null to use {@code reviewbranch.base} (or origin/master)
+   * @param excludes pathspecs to leave out of diffs, on top of {@code .reviewbranchignore}'s
+   */
+  public GitImpl(File workTree, String base, List<String> excludes) {
+    this(workTree, base, excludes, false);
+  }
+
+  private GitImpl(File workTree, String base, List<String> excludes, boolean sparse) {
+    this.workTree = workTree;
+    this.base = base;
+    this.excludes = excludes;
+    this.sparse = sparse;
+    batch = new CatFilePool(workTree, true);
+    batchCheck = new CatFilePool(workTree, false);
+  }
+
+  @Override
+  public void close() {
+    batch.close();
+    batchCheck.close();
+  }
+
   @Override
   public String getCurrentBranch() {
     BufferedResult r = git().arg("rev-parse").arg("--abbrev-ref").arg("HEAD").toBuffer();
@@ -23,9 +100,65 @@ public class GitImpl implements Git {
 
   @Override
   public List<String> getRevisionsFromOriginMaster() {
-    BufferedResult r = git().arg("rev-list").arg("--abbrev-commit").arg("--reverse").arg("origin/master..HEAD").toBuffer();
+    return getRevisionsFromOriginMaster("HEAD");
+  }
+
+  @Override
+  public List<String> getRevisionsFromOriginMaster(String branch) {
+    String base = getBase();
+    String baseId = batchCheck.with(c -> c.objectId(base)).orElseThrow(() -> new IllegalStateException("git failed: no base " + base));
+    String tipId = batchCheck.with(c -> c.objectId(branch)).orElseThrow(() -> new IllegalStateException("git failed: no branch " + branch));
+    if (revisions == null) {
+      revisions = new RevisionCache(getGitDir());
+    }
+    Optional<List<String>> cached = revisions.get(baseId, tipId);
+    if (cached.isPresent()) {
+      // messages are read lazily from cat-file instead
+      return cached.get();
+    }
+    // read each commit's message in the same pass, so later reads don't need to fork (or reset) per commit
+    BufferedResult r = git().arg("log").arg("-z").arg("--reverse").arg("--format=%H%x00%B").arg(baseId + ".." + tipId).toBuffer();
     failIfInvalidResult(r);
-    return Seq.of(chomp(r.out).split("\n")).toList();
+    List<String> revs = new ArrayList<>();
+    String[] parts = r.out.isEmpty() ? new String[0] : r.out.split("\0", -1);
+    for (int i = 0; i + 1 < parts.length; i += 2) {
+      revs.add(parts[i]);
+      messages.put(parts[i], StringUtils.stripEnd(parts[i + 1], "\n"));
+    }
+    revisions.put(baseId, tipId, revs);
+    return revs;
+  }
+
+  @Override
+  public String getBase() {
+    if (base != null) {
+      return base;
+    }
+    // not cached, so a long-lived process (i.e. the daemon) sees config changes
+    List<String> configured = getMultipleValueConfig("reviewbranch.base");
+    return configured.isEmpty() ? "origin/master" : configured.get(configured.size() - 1);
+  }
+
+  @Override
+  public boolean isMerged(String revision) {
+    BufferedResult r = git().arg("merge-base").arg("--is-ancestor").arg(revision).arg(getBase()).toBuffer();
+    Metrics.recordSpawn();
+    // 1 is not an ancestor, and anything else is e.g. an unknown (or gc'd) commit
+    return r.exitValue == 0;
+  }
+
+  @Override
+  public String getMergeBase(String revision) {
+    BufferedResult r = git().arg("merge-base").arg(getBase()).arg(revision).toBuffer();
+    failIfInvalidResult(r);
+    return chomp(r.out);
+  }
+
+  @Override
+  public List<String> getLocalBranches() {
+    BufferedResult r = git().arg("for-each-ref").arg("--format=%(refname:short)").arg("refs/heads/").toBuffer();
+    failIfInvalidResult(r);
+    return r.out.isEmpty() ? new ArrayList<>() : Seq.of(chomp(r.out).split("\n")).toList();
   }
 
   @Override
@@ -40,6 +173,17 @@ public class GitImpl implements Git {
     failIfInvalidResult(r);
   }
 
+  @Override
+  public void fastForward(String branch, String revision) {
+    BufferedResult r1 = git().arg("merge-base").arg("--is-ancestor").arg("refs/heads/" + branch).arg(revision).toBuffer();
+    Metrics.recordSpawn();
+    if (r1.exitValue != 0) {
+      throw new IllegalStateException("git failed: " + branch + " can't be fast-forwarded to " + revision);
+    }
+    BufferedResult r2 = git().arg("update-ref").arg("-m").arg("review-branch: fast-forward").arg("refs/heads/" + branch).arg(revision).toBuffer();
+    failIfInvalidResult(r2);
+  }
+
   @Override
   public void resetHard(String revision) {
     BufferedResult r = git().arg("reset").arg("--hard").arg(revision).toBuffer();
@@ -47,21 +191,34 @@ public class GitImpl implements Git {
   }
 
   @Override
-  public void cherryPick(String revision) {
-    // To ensure we don't change the hash (which isn't a huge deal, but is still nice), get the current committer/author information
-    BufferedResult r1 = git().arg("log").arg("--format='%cd!%ce!%ad!%ae'").arg(revision + "^.." + revision).toBuffer();
-    failIfInvalidResult(r1);
-    String[] info = chomp(r1.out).split("!");
-    String committerDate = info[0];
-    String committerEmail = info[1];
-
-    BufferedResult r2 = git()
-      .env("GIT_COMMITTER_EMAIL", committerEmail)
-      .env("GIT_COMMITTER_DATE", committerDate)
-      .arg("cherry-pick")
-      .arg(revision)
+  public String rewriteCommit(String revision, String parent, String message) {
+    // keep the original author/committer (and dates), read from the raw commit instead of forking `git log`
+    String commit = batch.with(c -> c.contentsAsString(revision + "^{commit}")).orElseThrow(() -> new IllegalStateException("git failed: no commit " + revision));
+    String headers = StringUtils.substringBefore(commit, "\n\n");
+    String[] author = ident(headers, "author");
+    String[] committer = ident(headers, "committer");
+    BufferedResult r = git()
+      .env("GIT_AUTHOR_NAME", author[0])
+      .env("GIT_AUTHOR_EMAIL", author[1])
+      .env("GIT_AUTHOR_DATE", author[2])
+      .env("GIT_COMMITTER_NAME", committer[0])
+      .env("GIT_COMMITTER_EMAIL", committer[1])
+      .env("GIT_COMMITTER_DATE", committer[2])
+      .arg("commit-tree")
+      .arg(getTreeId(revision))
+      .arg("-p")
+      .arg(parent)
+      .arg("-m")
+      .arg(message)
       .toBuffer();
-    failIfInvalidResult(r2);
+    failIfInvalidResult(r);
+    return chomp(r.out);
+  }
+
+  @Override
+  public void updateHead(String revision, String oldRevision) {
+    BufferedResult r = git().arg("update-ref").arg("-m").arg("review-branch: rewrite").arg("HEAD").arg(revision).arg(oldRevision).toBuffer();
+    failIfInvalidResult(r);
   }
 
   @Override
@@ -72,17 +229,102 @@ public class GitImpl implements Git {
   }
 
   @Override
-  public String getCurrentCommitMessage() {
-    BufferedResult r = git().arg("log").arg("-1").arg("--pretty=%B").toBuffer();
-    failIfInvalidResult(r);
-    return StringUtils.stripEnd(r.out, "\n");
+  public String getCommitMessage(String revision) {
+    String message = messages.get(revision);
+    if (message != null) {
+      return message;
+    }
+    String commit = batch.with(c -> c.contentsAsString(revision + "^{commit}")).orElseThrow(() -> new IllegalStateException("git failed: no commit " + revision));
+    // the message is everything after the headers' blank line, which is what %B returns
+    return StringUtils.stripEnd(StringUtils.substringAfter(commit, "\n\n"), "\n");
+  }
+
+  @Override
+  public String getTreeId(String revision) {
+    return batchCheck.with(c -> c.objectId(revision + "^{tree}")).orElseThrow(() -> new IllegalStateException("git failed: no tree for " + revision));
+  }
+
+  @Override
+  public void writeDiff(String revision, OutputStream out) {
+    streamDiff(Seq.of("diff", "-U0", revision + "^.." + revision).toList(), out);
+  }
+
+  @Override
+  public Map<String, String> getPatchIds(List<String> revisions) {
+    Map<String, String> patchIds = new HashMap<>();
+    if (revisions.isEmpty()) {
+      return patchIds;
+    }
+    // patch-id wants full commit ids, so map them back to how they were given
+    Map<String, String> revisionsById = new HashMap<>();
+    for (String revision : revisions) {
+      batchCheck.with(c -> c.objectId(revision + "^{commit}")).ifPresent(id -> revisionsById.put(id, revision));
+    }
+    try {
+      List<String> log = Seq.of("git", "log", "-p", "--no-walk=unsorted", "--no-color", "--no-ext-diff", "--format=commit %H")
+        .append(revisions)
+        .append(excludePathspecs())
+        .toList();
+      Process diffs = new ProcessBuilder(log).directory(workTree).start();
+      Process ids = new ProcessBuilder("git", "patch-id", "--stable").directory(workTree).start();
+      Metrics.recordSpawn();
+      Metrics.recordSpawn();
+      StderrPump diffsErr = StderrPump.start(diffs);
+      StderrPump idsErr = StderrPump.start(ids);
+      // Java 8 has no ProcessBuilder.startPipeline, so pump one into the other ourselves
+      Thread pump = new Thread(() -> {
+        try (InputStream in = diffs.getInputStream(); OutputStream out = ids.getOutputStream()) {
+          Metrics.recordBytesRead(ByteStreams.copy(in, out));
+        } catch (IOException e) {
+          // patch-id exited early; its exit code will tell us
+        }
+      }, "patch-id-pump");
+      pump.start();
+      String out;
+      try (InputStream in = ids.getInputStream()) {
+        out = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+      }
+      pump.join();
+      int diffsExit = diffs.waitFor();
+      int idsExit = ids.waitFor();
+      diffsErr.await();
+      idsErr.await();
+      if (diffsExit != 0 || idsExit != 0) {
+        throw new IllegalStateException("git failed");
+      }
+      // each line is "<patch id> <commit id>"
+      for (String line : out.split("\n")) {
+        String[] parts = line.split(" ");
+        if (parts.length == 2 && revisionsById.containsKey(parts[1])) {
+          patchIds.put(revisionsById.get(parts[1]), parts[0]);
+        }
+      }
+      return patchIds;
+    } catch (IOException | InterruptedException e) {
+      throw new IllegalStateException("git failed", e);
+    }
   }
 
   @Override
-  public String getCurrentDiff() {
-    BufferedResult r = git().arg("diff").arg("-U0").arg("HEAD^..HEAD").toBuffer();
+  public Map<String, Long> getChangedPaths(String revision) {
+    Execute e = git().arg("diff-tree").arg("-r").arg("-z").arg("--no-renames").arg(revision + "^").arg(revision);
+    excludePathspecs().forEach(e::arg);
+    BufferedResult r = e.toBuffer();
     failIfInvalidResult(r);
-    return chomp(r.out);
+    Map<String, Long> paths = new LinkedHashMap<>();
+    // each change is ":<old mode> <new mode> <old id> <new id> <status>", then its path
+    String[] fields = r.out.split("\0");
+    for (int i = 0; i + 1 < fields.length; i += 2) {
+      String newId = fields[i].split(" ")[3];
+      // deleted files have a zero id, and submodules' commits aren't in our object store
+      paths.put(fields[i + 1], newId.matches("0+") ? 0L : batchCheck.with(c -> c.size(newId)).orElse(0L));
+    }
+    return paths;
+  }
+
+  @Override
+  public void writeReviewDiff(String from, String to, OutputStream out) {
+    streamDiff(Seq.of("diff", "--full-index", "--no-color", "--no-ext-diff", "--ignore-submodules", from + ".." + to).toList(), out);
   }
 
   @Override
@@ -95,6 +337,7 @@ public class GitImpl implements Git {
   public List<String> getMultipleValueConfig(String key) {
     BufferedResult r = git().arg("config").arg("--get-all").arg(key).toBuffer();
     if (r.exitValue == 1) {
+      Metrics.recordSpawn();
       return new ArrayList<>();
     }
     failIfInvalidResult(r);
@@ -108,28 +351,199 @@ public class GitImpl implements Git {
   }
 
   @Override
-  public Optional<String> getNote(String ref) {
-    BufferedResult r = git().arg("notes").arg("--ref=" + ref).arg("show").toBuffer();
-    if (r.exitValue == 1) {
+  public Optional<String> getNote(String ref, String revision) {
+    Optional<String> commit = batchCheck.with(c -> c.objectId(revision + "^{commit}"));
+    if (!commit.isPresent()) {
       return Optional.empty();
     }
+    String unflushed = pendingNotes(ref).get(commit.get());
+    if (unflushed != null) {
+      return Optional.of(unflushed);
+    }
+    // notes are stored at <commit> in the notes tree, or at ab/cdef... once git fans it out
+    String path = commit.get();
+    for (int fanout = 0; fanout <= 3; fanout++) {
+      String object = "refs/notes/" + ref + ":" + path;
+      Optional<String> note = batch.with(c -> c.contentsAsString(object));
+      if (note.isPresent()) {
+        return Optional.of(chomp(note.get()));
+      }
+      int i = path.lastIndexOf('/') + 1;
+      path = path.substring(0, i + 2) + "/" + path.substring(i + 2);
+    }
+    return Optional.empty();
+  }
+
+  @Override
+  public NotesSnapshot getNotes(String ref) {
+    String key = batchCheck.with(c -> c.objectId("refs/notes/" + ref)).orElse("");
+    if (!key.equals(notesKeys.get(ref))) {
+      // one fork to list "<note blob> <commit>" pairs, then the blobs come from our cat-file process
+      BufferedResult r = git().arg("notes").arg("--ref=" + ref).arg("list").toBuffer();
+      failIfInvalidResult(r);
+      Map<String, String> read = new HashMap<>();
+      for (String line : chomp(r.out).split("\n")) {
+        if (!line.isEmpty()) {
+          String[] parts = line.split(" ");
+          batch.with(c -> c.contentsAsString(parts[0])).ifPresent(note -> read.put(parts[1], chomp(note)));
+        }
+      }
+      notesKeys.put(ref, key);
+      notesByRef.put(ref, read);
+    }
+    Map<String, String> notes = new HashMap<>(notesByRef.get(ref));
+    notes.putAll(pendingNotes(ref));
+    return new NotesSnapshot(notes);
+  }
+
+  @Override
+  public synchronized void setNote(String ref, String revision, String value) {
+    // resolve now, as revision may be e.g. HEAD, which will have moved by the time we flush
+    String commit = batchCheck.with(c -> c.objectId(revision + "^{commit}")).orElseThrow(() -> new IllegalStateException("git failed: no commit " + revision));
+    pendingNotes.computeIfAbsent(ref, r -> new LinkedHashMap<>()).put(commit, value);
+  }
+
+  @Override
+  public synchronized void flushNotes() {
+    if (pendingNotes.isEmpty()) {
+      return;
+    }
+    BufferedResult r = git().arg("var").arg("GIT_COMMITTER_IDENT").toBuffer();
     failIfInvalidResult(r);
-    return Optional.of(chomp(r.out));
+    String committer = chomp(r.out);
+
+    // write one notes commit per ref, on top of the ref's current notes commit (if any)
+    StringBuilder stream = new StringBuilder();
+    for (Map.Entry<String, Map<String, String>> e : pendingNotes.entrySet()) {
+      String ref = "refs/notes/" + e.getKey();
+      stream.append("commit ").append(ref).append("\n");
+      stream.append("committer ").append(committer).append("\n");
+      appendData(stream, "Notes added by 'review-branch'\n");
+      batchCheck.with(c -> c.objectId(ref)).ifPresent(parent -> stream.append("from ").append(parent).append("\n"));
+      for (Map.Entry<String, String> note : e.getValue().entrySet()) {
+        stream.append("N inline ").append(note.getKey()).append("\n");
+        // match `git notes add -m`, which adds a trailing newline
+        appendData(stream, note.getValue() + "\n");
+      }
+      stream.append("\n");
+    }
+    fastImport(stream.toString());
+    pendingNotes.clear();
   }
 
   @Override
-  public void setNote(String ref, String value) {
-    BufferedResult r = git().arg("notes").arg("--ref=" + ref).arg("add").arg("-f").arg("-m").arg(value).toBuffer();
+  public File getGitDir() {
+    if (gitDir == null) {
+      // the common dir, so that worktrees share our .git/review-branch directory
+      BufferedResult r = git().arg("rev-parse").arg("--git-common-dir").toBuffer();
+      failIfInvalidResult(r);
+      File dir = new File(chomp(r.out));
+      gitDir = dir.isAbsolute() || workTree == null ? dir.getAbsoluteFile() : new File(workTree, dir.getPath());
+    }
+    return gitDir;
+  }
+
+  @Override
+  public File getWorkTreeGitDir() {
+    BufferedResult r = git().arg("rev-parse").arg("--git-dir").toBuffer();
     failIfInvalidResult(r);
+    File dir = new File(chomp(r.out));
+    return dir.isAbsolute() || workTree == null ? dir.getAbsoluteFile() : new File(workTree, dir.getPath());
+  }
+
+  @Override
+  public List<String> getExcludes() {
+    List<String> all = new ArrayList<>(excludes);
+    // next to the (main) .git, so worktrees read the user's copy rather than whichever commit they have checked out
+    File ignore = new File(getGitDir().getParentFile(), ".reviewbranchignore");
+    if (ignore.exists()) {
+      try {
+        for (String line : Files.readAllLines(ignore.toPath(), StandardCharsets.UTF_8)) {
+          if (!line.trim().isEmpty() && !line.startsWith("#")) {
+            all.add(line.trim());
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + ignore, e);
+      }
+    }
+    return Seq.seq(all).distinct().toList();
+  }
+
+  @Override
+  public Git addWorkTree(File dir, String branch) {
+    if (!dir.exists()) {
+      // drop any stale registration from a worktree dir that was deleted
+      failIfInvalidResult(git().arg("worktree").arg("prune").toBuffer());
+      BufferedResult r = git().arg("worktree").arg("add").arg("--no-checkout").arg("-f").arg("-B").arg(branch).arg(dir.getPath()).arg("HEAD").toBuffer();
+      failIfInvalidResult(r);
+      GitImpl wt = new GitImpl(dir, getBase(), excludes, true);
+      // only check out the top-level files, like `sparse-checkout set --cone` would, but without it turning on
+      // extensions.worktreeConfig in the user's shared .git/config
+      File patterns = new File(wt.getWorkTreeGitDir(), "info/sparse-checkout");
+      try {
+        patterns.getParentFile().mkdirs();
+        Files.write(patterns.toPath(), Arrays.asList("/*", "!/*/"), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not write " + patterns, e);
+      }
+      failIfInvalidResult(wt.git().arg("checkout").arg("-q").arg("-f").toBuffer());
+      return wt;
+    }
+    return new GitImpl(dir, getBase(), excludes, true);
   }
 
   @Override
   public boolean isWorkingCopyClean() {
     BufferedResult r = git().arg("diff-index").arg("--quiet").arg("HEAD").toBuffer();
+    Metrics.recordSpawn();
     return r.exitValue == 0;
   }
 
+  private synchronized Map<String, String> pendingNotes(String ref) {
+    return new HashMap<>(pendingNotes.getOrDefault(ref, new HashMap<>()));
+  }
+
+  /** @return the name, email and (raw) date from a commit's {@code author}/{@code committer} header */
+  private static String[] ident(String headers, String header) {
+    for (String line : headers.split("\n")) {
+      if (line.startsWith(header + " ")) {
+        String ident = line.substring(header.length() + 1);
+        return new String[] {
+          StringUtils.substringBefore(ident, " <"),
+          StringUtils.substringBetween(ident, "<", ">"),
+          StringUtils.substringAfterLast(ident, "> ") };
+      }
+    }
+    throw new IllegalStateException("git failed: commit has no " + header);
+  }
+
+  private static void appendData(StringBuilder stream, String data) {
+    // fast-import wants the exact length in bytes
+    stream.append("data ").append(data.getBytes(StandardCharsets.UTF_8).length).append("\n").append(data).append("\n");
+  }
+
+  private void fastImport(String stream) {
+    try {
+      Process p = new ProcessBuilder("git", "fast-import", "--quiet").directory(workTree).redirectErrorStream(true).start();
+      Metrics.recordSpawn();
+      try (OutputStream in = p.getOutputStream()) {
+        in.write(stream.getBytes(StandardCharsets.UTF_8));
+      }
+      String out = new String(ByteStreams.toByteArray(p.getInputStream()), StandardCharsets.UTF_8);
+      if (p.waitFor() != 0) {
+        System.err.println(out);
+        throw new IllegalStateException("git failed");
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  // every Execute'd git process comes through here
   private static void failIfInvalidResult(BufferedResult r) {
+    Metrics.recordSpawn();
+    Metrics.recordBytesRead(r.out.getBytes(StandardCharsets.UTF_8).length);
     if (r.exitValue != 0) {
       System.out.println(r.out);
       System.err.println(r.err);
@@ -137,8 +551,47 @@ public class GitImpl implements Git {
     }
   }
 
-  private static Execute git() {
-    return new Execute("git").addEnvPaths();
+  // diffs can be huge, and aren't necessarily UTF-8, so copy git's output through instead of buffering it like Execute does
+  private void streamDiff(List<String> args, OutputStream out) {
+    try {
+      Process p = new ProcessBuilder(Seq.of("git").append(args).append(excludePathspecs()).toList()) //
+        .directory(workTree)
+        .start();
+      Metrics.recordSpawn();
+      StderrPump err = StderrPump.start(p);
+      try (InputStream in = p.getInputStream()) {
+        Metrics.recordBytesRead(ByteStreams.copy(in, out));
+      }
+      int exit = p.waitFor();
+      err.await();
+      if (exit != 0) {
+        throw new IllegalStateException("git failed");
+      }
+    } catch (IOException | InterruptedException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  /** @return {@link #getExcludes()} as exclude pathspecs (anchored at the top, even from a subdirectory), after a {@code --} */
+  private List<String> excludePathspecs() {
+    List<String> excludes = getExcludes();
+    if (excludes.isEmpty()) {
+      return excludes;
+    }
+    // pathspecs that already have magic, e.g. :(exclude,icase)..., are used as is
+    return Seq.of("--").append(Seq.seq(excludes).map(p -> p.startsWith(":") ? p : ":(top,exclude)" + p)).toList();
+  }
+
+  private Execute git() {
+    Execute e = new Execute("git").addEnvPaths();
+    if (workTree != null) {
+      e.arg("-C").arg(workTree.getPath());
+    }
+    if (sparse) {
+      // turned on per command rather than in config, so the worktree's checkouts and resets stay sparse
+      e.arg("-c").arg("core.sparseCheckout=true").arg("-c").arg("core.sparseCheckoutCone=true");
+    }
+    return e;
   }
 
 }
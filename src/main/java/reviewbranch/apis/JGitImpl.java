@@ -0,0 +1,454 @@
+package reviewbranch.apis;
+
+import static org.apache.commons.lang3.StringUtils.chomp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.commons.lang3.StringUtils;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
+import org.eclipse.jgit.notes.NoteMap;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Implements {@link Git}'s reads (revisions, messages, trees and notes), and note and commit writes, in-process with JGit, so
+ * metadata-heavy commands don't fork at all.
+ *
+ * Everything that changes the working copy or HEAD (reset, amend, worktrees), or whose output has to match real
+ * git byte-for-byte (the diffs we hash and upload), is delegated to a fallback {@link GitImpl}.
+ */
+public class JGitImpl implements Git {
+
+  private static final Logger log = LoggerFactory.getLogger(JGitImpl.class);
+
+  private final Repository repo;
+  private final Git fallback;
+  // null means reviewbranch.base, or origin/master
+  private final String base;
+  private RevisionCache revisions;
+  // commit messages keyed by full hash, filled in by the walk over our revisions
+  private final Map<String, String> messages = new HashMap<>();
+  // note changes by ref, then full commit hash, buffered until flushNotes
+  private final Map<String, Map<String, String>> pendingNotes = new LinkedHashMap<>();
+
+  /**
+   * @return a {@link JGitImpl} for the repo containing the current directory, or {@code fallback} if JGit can't open it
+   *         (e.g. we're in a linked worktree)
+   */
+  public static Git open(Git fallback) {
+    return open(fallback, null);
+  }
+
+  /** @param base the ref our revisions start from, or null to use {@code reviewbranch.base} (or origin/master) */
+  public static Git open(Git fallback, String base) {
+    try {
+      Repository repo = new FileRepositoryBuilder().readEnvironment().findGitDir(new File("").getAbsoluteFile()).setMustExist(true).build();
+      if (new File(repo.getDirectory(), "commondir").exists()) {
+        repo.close();
+        log.warn("JGit doesn't support worktrees; falling back to git");
+        return fallback;
+      }
+      return new JGitImpl(repo, fallback, base);
+    } catch (IOException | IllegalArgumentException e) {
+      log.warn("Could not open the repository with JGit; falling back to git", e);
+      return fallback;
+    }
+  }
+
+  public JGitImpl(Repository repo, Git fallback) {
+    this(repo, fallback, null);
+  }
+
+  public JGitImpl(Repository repo, Git fallback, String base) {
+    this.repo = repo;
+    this.fallback = fallback;
+    this.base = base;
+  }
+
+  @Override
+  public String getCurrentBranch() {
+    try {
+      // like `rev-parse --abbrev-ref`, which says HEAD when detached
+      String full = repo.getFullBranch();
+      return full != null && full.startsWith(Constants.R_HEADS) ? Repository.shortenRefName(full) : Constants.HEAD;
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public String getCurrentCommit() {
+    try (ObjectReader reader = repo.newObjectReader()) {
+      return reader.abbreviate(resolve(Constants.HEAD)).name();
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public List<String> getRevisionsFromOriginMaster() {
+    return getRevisionsFromOriginMaster(Constants.HEAD);
+  }
+
+  @Override
+  public List<String> getRevisionsFromOriginMaster(String branch) {
+    ObjectId baseId = resolve(getBase());
+    ObjectId tipId = resolve(branch);
+    if (revisions == null) {
+      revisions = new RevisionCache(getGitDir());
+    }
+    Optional<List<String>> cached = revisions.get(baseId.name(), tipId.name());
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+    List<String> revs = new ArrayList<>();
+    try (RevWalk walk = new RevWalk(repo)) {
+      walk.markStart(walk.parseCommit(tipId));
+      walk.markUninteresting(walk.parseCommit(baseId));
+      walk.sort(RevSort.TOPO);
+      walk.sort(RevSort.REVERSE, true);
+      for (RevCommit c : walk) {
+        String rev = c.name();
+        revs.add(rev);
+        messages.put(rev, StringUtils.stripEnd(c.getFullMessage(), "\n"));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+    revisions.put(baseId.name(), tipId.name(), revs);
+    return revs;
+  }
+
+  @Override
+  public String getBase() {
+    if (base != null) {
+      return base;
+    }
+    String[] configured = repo.getConfig().getStringList("reviewbranch", null, "base");
+    return configured.length == 0 ? "origin/master" : configured[configured.length - 1];
+  }
+
+  @Override
+  public boolean isMerged(String revision) {
+    try (RevWalk walk = new RevWalk(repo)) {
+      ObjectId id = repo.resolve(revision);
+      return id != null && walk.isMergedInto(walk.parseCommit(id), walk.parseCommit(resolve(getBase())));
+    } catch (MissingObjectException e) {
+      return false;
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public String getMergeBase(String revision) {
+    try (RevWalk walk = new RevWalk(repo)) {
+      walk.setRevFilter(RevFilter.MERGE_BASE);
+      walk.markStart(walk.parseCommit(resolve(revision)));
+      walk.markStart(walk.parseCommit(resolve(getBase())));
+      RevCommit base = walk.next();
+      if (base == null) {
+        throw new IllegalStateException("git failed: no merge base of " + revision + " and " + getBase());
+      }
+      return base.name();
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public List<String> getLocalBranches() {
+    List<String> branches = new ArrayList<>();
+    try {
+      for (Ref ref : repo.getRefDatabase().getRefsByPrefix(Constants.R_HEADS)) {
+        branches.add(Repository.shortenRefName(ref.getName()));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+    return branches;
+  }
+
+  @Override
+  public String getCommitMessage(String revision) {
+    String message = messages.get(revision);
+    if (message != null) {
+      return message;
+    }
+    try (RevWalk walk = new RevWalk(repo)) {
+      return StringUtils.stripEnd(walk.parseCommit(resolve(revision + "^{commit}")).getFullMessage(), "\n");
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public String getTreeId(String revision) {
+    return resolve(revision + "^{tree}").name();
+  }
+
+  @Override
+  public void writeDiff(String revision, OutputStream out) {
+    // JGit's diff output isn't byte-for-byte git's (e.g. hunk headers), which would change every RB's diff hash
+    fallback.writeDiff(revision, out);
+  }
+
+  @Override
+  public List<String> getExcludes() {
+    return fallback.getExcludes();
+  }
+
+  @Override
+  public void writeReviewDiff(String from, String to, OutputStream out) {
+    fallback.writeReviewDiff(from, to, out);
+  }
+
+  @Override
+  public Map<String, String> getPatchIds(List<String> revisions) {
+    // JGit doesn't implement git's --stable patch ids
+    return fallback.getPatchIds(revisions);
+  }
+
+  @Override
+  public Map<String, Long> getChangedPaths(String revision) {
+    return fallback.getChangedPaths(revision);
+  }
+
+  @Override
+  public void amendCurrentCommitMessage(String newMessage) {
+    fallback.amendCurrentCommitMessage(newMessage);
+  }
+
+  @Override
+  public void checkout(String revision) {
+    fallback.checkout(revision);
+  }
+
+  @Override
+  public void mergeFf(String revision) {
+    fallback.mergeFf(revision);
+  }
+
+  @Override
+  public void fastForward(String branch, String revision) {
+    fallback.fastForward(branch, revision);
+  }
+
+  @Override
+  public void resetHard(String revision) {
+    fallback.resetHard(revision);
+  }
+
+  @Override
+  public String rewriteCommit(String revision, String parent, String message) {
+    try (RevWalk walk = new RevWalk(repo); ObjectInserter inserter = repo.newObjectInserter()) {
+      RevCommit original = walk.parseCommit(resolve(revision + "^{commit}"));
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(original.getTree());
+      commit.setParentId(resolve(parent + "^{commit}"));
+      commit.setAuthor(original.getAuthorIdent());
+      commit.setCommitter(original.getCommitterIdent());
+      // match `commit-tree -m`, which adds a trailing newline
+      commit.setMessage(message + "\n");
+      ObjectId id = inserter.insert(commit);
+      inserter.flush();
+      return id.name();
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public void updateHead(String revision, String oldRevision) {
+    fallback.updateHead(revision, oldRevision);
+  }
+
+  @Override
+  public boolean isWorkingCopyClean() {
+    return fallback.isWorkingCopyClean();
+  }
+
+  @Override
+  public File getGitDir() {
+    return repo.getDirectory().toPath().toAbsolutePath().normalize().toFile();
+  }
+
+  @Override
+  public File getWorkTreeGitDir() {
+    // we don't open linked worktrees
+    return getGitDir();
+  }
+
+  @Override
+  public Git addWorkTree(File dir, String branch) {
+    return fallback.addWorkTree(dir, branch);
+  }
+
+  @Override
+  public List<String> getMultipleValueConfig(String key) {
+    // e.g. notes.displayRef, or branch.foo.reviewid
+    String section = StringUtils.substringBefore(key, ".");
+    String name = StringUtils.substringAfterLast(key, ".");
+    String subsection = key.indexOf('.') == key.lastIndexOf('.') ? null : key.substring(section.length() + 1, key.length() - name.length() - 1);
+    return new ArrayList<>(Arrays.asList(repo.getConfig().getStringList(section, subsection, name)));
+  }
+
+  @Override
+  public void addMultipleValueConfig(String key, String value) {
+    // the repo reloads its config once it sees the file changed
+    fallback.addMultipleValueConfig(key, value);
+  }
+
+  @Override
+  public Optional<String> getNote(String ref, String revision) {
+    ObjectId commit;
+    try {
+      commit = repo.resolve(revision + "^{commit}");
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+    if (commit == null) {
+      return Optional.empty();
+    }
+    String unflushed = pendingNotes(ref).get(commit.name());
+    if (unflushed != null) {
+      return Optional.of(unflushed);
+    }
+    try (RevWalk walk = new RevWalk(repo)) {
+      Optional<NoteMap> notes = readNotes(walk, ref);
+      if (!notes.isPresent()) {
+        return Optional.empty();
+      }
+      ObjectId blob = notes.get().get(commit);
+      return blob == null ? Optional.empty() : Optional.of(readNote(walk.getObjectReader(), blob));
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+  @Override
+  public NotesSnapshot getNotes(String ref) {
+    Map<String, String> notes = new HashMap<>();
+    try (RevWalk walk = new RevWalk(repo)) {
+      Optional<NoteMap> map = readNotes(walk, ref);
+      if (map.isPresent()) {
+        for (Note note : map.get()) {
+          notes.put(note.name(), readNote(walk.getObjectReader(), note.getData()));
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+    notes.putAll(pendingNotes(ref));
+    return new NotesSnapshot(notes);
+  }
+
+  @Override
+  public synchronized void setNote(String ref, String revision, String value) {
+    // resolve now, as revision may be e.g. HEAD, which will have moved by the time we flush
+    String commit = resolve(revision + "^{commit}").name();
+    pendingNotes.computeIfAbsent(ref, r -> new LinkedHashMap<>()).put(commit, value);
+  }
+
+  @Override
+  public synchronized void flushNotes() {
+    // write one notes commit per ref, on top of the ref's current notes commit (if any)
+    for (Map.Entry<String, Map<String, String>> e : pendingNotes.entrySet()) {
+      String ref = Constants.R_NOTES + e.getKey();
+      try (RevWalk walk = new RevWalk(repo); ObjectInserter inserter = repo.newObjectInserter()) {
+        Ref current = repo.exactRef(ref);
+        RevCommit parent = current == null ? null : walk.parseCommit(current.getObjectId());
+        NoteMap notes = parent == null ? NoteMap.newEmptyMap() : NoteMap.read(walk.getObjectReader(), parent);
+        for (Map.Entry<String, String> note : e.getValue().entrySet()) {
+          // match `git notes add -m`, which adds a trailing newline
+          byte[] value = (note.getValue() + "\n").getBytes(StandardCharsets.UTF_8);
+          notes.set(ObjectId.fromString(note.getKey()), inserter.insert(Constants.OBJ_BLOB, value));
+        }
+
+        CommitBuilder commit = new CommitBuilder();
+        PersonIdent ident = new PersonIdent(repo);
+        commit.setAuthor(ident);
+        commit.setCommitter(ident);
+        commit.setMessage("Notes added by 'review-branch'\n");
+        commit.setTreeId(notes.writeTree(inserter));
+        if (parent != null) {
+          commit.setParentId(parent);
+        }
+        ObjectId id = inserter.insert(commit);
+        inserter.flush();
+
+        RefUpdate update = repo.updateRef(ref);
+        update.setNewObjectId(id);
+        update.setExpectedOldObjectId(parent == null ? ObjectId.zeroId() : parent);
+        update.setRefLogMessage("notes: Notes added by 'review-branch'", false);
+        RefUpdate.Result result = update.update(walk);
+        if (result != RefUpdate.Result.NEW && result != RefUpdate.Result.FAST_FORWARD) {
+          throw new IllegalStateException("git failed: could not update " + ref + ": " + result);
+        }
+      } catch (IOException ex) {
+        throw new IllegalStateException("git failed", ex);
+      }
+    }
+    pendingNotes.clear();
+  }
+
+  @Override
+  public void close() {
+    repo.close();
+    fallback.close();
+  }
+
+  private synchronized Map<String, String> pendingNotes(String ref) {
+    return new HashMap<>(pendingNotes.getOrDefault(ref, new HashMap<>()));
+  }
+
+  private Optional<NoteMap> readNotes(RevWalk walk, String ref) throws IOException {
+    Ref notes = repo.exactRef(Constants.R_NOTES + ref);
+    if (notes == null) {
+      return Optional.empty();
+    }
+    return Optional.of(NoteMap.read(walk.getObjectReader(), walk.parseCommit(notes.getObjectId())));
+  }
+
+  private static String readNote(ObjectReader reader, ObjectId blob) throws IOException {
+    return chomp(new String(reader.open(blob, Constants.OBJ_BLOB).getBytes(), StandardCharsets.UTF_8));
+  }
+
+  private ObjectId resolve(String revision) {
+    try {
+      ObjectId id = repo.resolve(revision);
+      if (id == null) {
+        throw new IllegalStateException("git failed: could not resolve " + revision);
+      }
+      return id;
+    } catch (IOException e) {
+      throw new IllegalStateException("git failed", e);
+    }
+  }
+
+}
@@ -0,0 +1,249 @@
+package reviewbranch.apis;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.jooq.lambda.Seq;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Records where a run spends its time: per {@link Git}/{@link ReviewBoard} method call counts, wall time histograms,
+ * processes spawned and bytes read from them, plus the total time spent on each revision.
+ *
+ * Calls are recorded by wrapping the interfaces with {@link #wrap(Class, Object)}; the implementations report spawns
+ * and bytes with {@link #recordSpawn()}/{@link #recordBytesRead(long)}, which are attributed to the innermost wrapped
+ * call on the current thread. Everything is process-wide, like a logger.
+ */
+public class Metrics {
+
+  // histogram buckets are powers of 2 of microseconds, i.e. <1us, <2us, ... up to ~35 minutes
+  private static final int buckets = 32;
+  private static final Map<String, Stat> methods = new TreeMap<>();
+  private static final Map<String, Long> revs = new LinkedHashMap<>();
+  private static final ThreadLocal<Stat> current = new ThreadLocal<>();
+
+  private Metrics() {
+  }
+
+  /** @return {@code target} wrapped so that each of its methods' calls are recorded, as e.g. {@code Git.getDiff} */
+  @SuppressWarnings("unchecked")
+  public static <T> T wrap(Class<T> iface, T target) {
+    return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, (proxy, method, args) -> {
+      if (method.getDeclaringClass().equals(Object.class)) {
+        return method.invoke(target, args);
+      }
+      Stat stat = stat(iface.getSimpleName() + "." + method.getName());
+      Stat outer = current.get();
+      current.set(stat);
+      long start = System.nanoTime();
+      try {
+        Object result = method.invoke(target, args);
+        // e.g. worktree-bound instances
+        return iface.equals(method.getReturnType()) && result != null ? wrap(iface, iface.cast(result)) : result;
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      } finally {
+        stat.record(System.nanoTime() - start);
+        current.set(outer);
+      }
+    });
+  }
+
+  /** Records that the current call forked a process. */
+  public static void recordSpawn() {
+    Stat stat = current.get();
+    if (stat != null) {
+      stat.addSpawn();
+    }
+  }
+
+  /** Records that the current call read {@code bytes} from a process's stdout (or the RB server). */
+  public static void recordBytesRead(long bytes) {
+    Stat stat = current.get();
+    if (stat != null) {
+      stat.addBytesRead(bytes);
+    }
+  }
+
+  /** Runs {@code work}, adding its time to the time spent on {@code rev}. */
+  public static void timeRev(String rev, Runnable work) {
+    timeRev(rev, () -> {
+      work.run();
+      return null;
+    });
+  }
+
+  /** @return {@code work}'s result, after adding its time to the time spent on {@code rev} */
+  public static <T> T timeRev(String rev, Supplier<T> work) {
+    long start = System.nanoTime();
+    try {
+      return work.get();
+    } finally {
+      recordRevTime(rev, System.nanoTime() - start);
+    }
+  }
+
+  /** Adds {@code nanos} to the time spent on {@code rev}, for loops whose work on each rev can't be a callback. */
+  public static void recordRevTime(String rev, long nanos) {
+    synchronized (revs) {
+      revs.merge(rev, nanos, Long::sum);
+    }
+  }
+
+  /** @return a table of each method's stats, and the slowest revisions */
+  public static String summary() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-40s %7s %7s %10s %9s %9s %9s %12s%n", "method", "calls", "spawns", "total ms", "mean ms", "p90 ms", "max ms", "bytes read"));
+    for (Map.Entry<String, Stat> e : snapshot().entrySet()) {
+      Stat s = e.getValue();
+      sb.append(String.format(
+        "%-40s %7d %7d %10.1f %9.2f %9.2f %9.2f %12d%n",
+        e.getKey(),
+        s.calls,
+        s.spawns,
+        ms(s.totalNanos),
+        ms(s.totalNanos) / s.calls,
+        s.percentileMillis(0.9),
+        ms(s.maxNanos),
+        s.bytesRead));
+    }
+    List<Map.Entry<String, Long>> slowest = Seq.seq(revsSnapshot()).sorted(e -> -e.getValue()).limit(5).toList();
+    if (!slowest.isEmpty()) {
+      sb.append(String.format("%nslowest revisions:%n"));
+      for (Map.Entry<String, Long> e : slowest) {
+        sb.append(String.format("  %-12s %10.1f ms%n", e.getKey(), ms(e.getValue())));
+      }
+    }
+    return sb.toString();
+  }
+
+  /** Writes every method's stats (including histograms) and every revision's time to {@code file} as JSON. */
+  public static void writeJson(File file) {
+    Map<String, Object> json = new LinkedHashMap<>();
+    Map<String, Object> methodsJson = new LinkedHashMap<>();
+    for (Map.Entry<String, Stat> e : snapshot().entrySet()) {
+      Stat s = e.getValue();
+      Map<String, Object> m = new LinkedHashMap<>();
+      m.put("calls", s.calls);
+      m.put("spawns", s.spawns);
+      m.put("bytesRead", s.bytesRead);
+      m.put("totalMillis", ms(s.totalNanos));
+      m.put("maxMillis", ms(s.maxNanos));
+      // upper bound in micros -> calls
+      Map<String, Long> histogram = new LinkedHashMap<>();
+      for (int i = 0; i < buckets; i++) {
+        if (s.histogram[i] > 0) {
+          histogram.put("<" + (1L << i) + "us", s.histogram[i]);
+        }
+      }
+      m.put("histogram", histogram);
+      methodsJson.put(e.getKey(), m);
+    }
+    json.put("methods", methodsJson);
+    Map<String, Double> revsJson = new LinkedHashMap<>();
+    revsSnapshot().forEach(e -> revsJson.put(e.getKey(), ms(e.getValue())));
+    json.put("revisions", revsJson);
+    try (Writer w = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(json, w);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+  }
+
+  /** Forgets everything recorded so far. */
+  public static void reset() {
+    synchronized (methods) {
+      methods.clear();
+    }
+    synchronized (revs) {
+      revs.clear();
+    }
+  }
+
+  private static Stat stat(String name) {
+    synchronized (methods) {
+      return methods.computeIfAbsent(name, n -> new Stat());
+    }
+  }
+
+  private static Map<String, Stat> snapshot() {
+    Map<String, Stat> copy = new TreeMap<>();
+    synchronized (methods) {
+      methods.forEach((name, stat) -> copy.put(name, stat.copy()));
+    }
+    return copy;
+  }
+
+  private static List<Map.Entry<String, Long>> revsSnapshot() {
+    synchronized (revs) {
+      return new ArrayList<>(new LinkedHashMap<>(revs).entrySet());
+    }
+  }
+
+  private static double ms(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private static class Stat {
+    private long calls;
+    private long spawns;
+    private long bytesRead;
+    private long totalNanos;
+    private long maxNanos;
+    private long[] histogram = new long[buckets];
+
+    private synchronized void record(long nanos) {
+      calls++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+      long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+      int bucket = 64 - Long.numberOfLeadingZeros(micros);
+      histogram[Math.min(bucket, buckets - 1)]++;
+    }
+
+    private synchronized void addSpawn() {
+      spawns++;
+    }
+
+    private synchronized void addBytesRead(long bytes) {
+      bytesRead += bytes;
+    }
+
+    private synchronized Stat copy() {
+      Stat s = new Stat();
+      s.calls = calls;
+      s.spawns = spawns;
+      s.bytesRead = bytesRead;
+      s.totalNanos = totalNanos;
+      s.maxNanos = maxNanos;
+      s.histogram = histogram.clone();
+      return s;
+    }
+
+    /** @return the upper bound of the histogram bucket that {@code p} of the calls fall in */
+    private double percentileMillis(double p) {
+      long seen = 0;
+      for (int i = 0; i < buckets; i++) {
+        seen += histogram[i];
+        if (seen >= Math.ceil(calls * p)) {
+          return Math.min((1L << i) / 1000.0, ms(maxNanos));
+        }
+      }
+      return ms(maxNanos);
+    }
+  }
+
+}
@@ -0,0 +1,36 @@
+package reviewbranch.apis;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * An in-memory copy of every note on a {@code refs/notes/...} ref, loaded in one pass by {@link Git#getNotes(String)}.
+ *
+ * Lookups accept abbreviated commit hashes (like {@link Git#getRevisionsFromOriginMaster()} returns), so commands can
+ * consult the snapshot instead of forking {@code git notes show} per commit.
+ */
+public class NotesSnapshot {
+
+  private final TreeMap<String, String> notes;
+
+  /** @param notes note contents keyed by commit hash */
+  public NotesSnapshot(Map<String, String> notes) {
+    this.notes = new TreeMap<>(notes);
+  }
+
+  public Optional<String> get(String commit) {
+    // the first key >= our (possibly abbreviated) hash is the only one that can have it as a prefix
+    Entry<String, String> e = notes.ceilingEntry(commit);
+    if (e != null && e.getKey().startsWith(commit)) {
+      return Optional.of(e.getValue());
+    }
+    return Optional.empty();
+  }
+
+  public int size() {
+    return notes.size();
+  }
+
+}
@@ -1,15 +1,47 @@
 package reviewbranch.apis;
 
+import java.io.File;
 import java.util.Optional;
 
 import reviewbranch.commands.ReviewCommand;
 
-public interface ReviewBoard {
+public interface ReviewBoard extends AutoCloseable {
 
   String createNewRbForCurrentCommit(ReviewCommand args, String currentBranch, Optional<String> dependsOn, Optional<String> bugId);
 
   void updateRbForCurrentCommit(ReviewCommand args, String rbId, Optional<String> dependsOn);
 
-  void dcommit(String rbId);
+  /**
+   * Sets just the RB's depends-on, for RBs that were uploaded before their parent's RB id was known; only called if
+   * {@link #canUpdateDependsOnAlone()}.
+   */
+  default void updateDependsOnForCurrentCommit(ReviewCommand args, String rbId, String dependsOn) {
+    throw new IllegalStateException(getClass().getSimpleName() + " can't change depends-on without re-posting the diff");
+  }
+
+  /**
+   * @return whether {@link #updateDependsOnForCurrentCommit} is supported (and cheap and quiet); if not, new RBs are
+   *         instead created after their parent's, so their depends-on is known up front
+   */
+  default boolean canUpdateDependsOnAlone() {
+    return false;
+  }
+
+  /**
+   * @return {@code revision}'s message, stamped with the RB's approval information like {@code git review dcommit}
+   *         does; the caller writes the stamped commit itself
+   */
+  String getDcommitMessage(String rbId, String revision);
+
+  /** @return whether the RB has at least one ship it; safe to call from several threads at once */
+  boolean isApproved(String rbId);
+
+  /** @return a {@link ReviewBoard} whose "current commit" is the HEAD of the worktree in {@code dir} */
+  ReviewBoard inWorkTree(File dir);
+
+  /** Releases anything this {@link ReviewBoard} opened itself, e.g. the {@link Git} behind an {@link #inWorkTree} one. */
+  @Override
+  default void close() {
+  }
 
 }
@@ -2,8 +2,20 @@ package reviewbranch.apis;
 
 import static org.apache.commons.lang3.StringUtils.chomp;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import joist.util.Execute;
 import joist.util.Execute.BufferedResult;
 import reviewbranch.commands.ReviewCommand;
@@ -13,14 +25,49 @@ import reviewbranch.commands.ReviewCommand;
  */
 public class ReviewBoardImpl implements ReviewBoard {
 
+  private static final Logger log = LoggerFactory.getLogger(ReviewBoardImpl.class);
+  // `git review create` writes the new RB's id to the (shared) .git/config, and git fails instead of waiting if another
+  // worktree's create holds its lock, so our creates take turns
+  private static final Object configLock = new Object();
+
+  // null means the current directory
+  private final File workTree;
+  // passed on to rbt, so excluded files aren't uploaded
+  private final List<String> excludes;
+  // the excludes as rbt globs, translated once so untranslatable ones are only warned about once
+  private final List<String> rbtExcludes;
+
+  public ReviewBoardImpl() {
+    this(null);
+  }
+
+  /** @param workTree the directory to run {@code git review} in, e.g. a {@code git worktree} */
+  public ReviewBoardImpl(File workTree) {
+    this(workTree, Collections.emptyList());
+  }
+
+  /**
+   * @param workTree the directory to run {@code git review} in, e.g. a {@code git worktree}
+   * @param excludes {@link Git#getExcludes()}, to leave out of uploaded diffs
+   */
+  public ReviewBoardImpl(File workTree, List<String> excludes) {
+    this(workTree, excludes, rbtGlobs(excludes));
+  }
+
+  private ReviewBoardImpl(File workTree, List<String> excludes, List<String> rbtExcludes) {
+    this.workTree = workTree;
+    this.excludes = excludes;
+    this.rbtExcludes = rbtExcludes;
+  }
+
   @Override
   public String createNewRbForCurrentCommit(//
       ReviewCommand args,
       String currentBranch,
       Optional<String> previousRbId,
       Optional<String> bugId) {
-    // `git review` stores a single RB-per-branch ID in config; ensure we don't use that
-    unsetReviewIdInGitConfig(currentBranch);
+    // `git review` stores a single RB-per-branch ID in config, under whichever branch is checked out where it runs
+    String configBranch = workTree == null ? currentBranch : getCheckedOutBranch();
 
     Execute e = git() //
       .arg("review")
@@ -34,22 +81,23 @@ public class ReviewBoardImpl implements ReviewBoard {
     if (args.publish) {
       e.arg("--publish");
     }
-    if (previousRbId.isPresent() || bugId.isPresent()) {
-      String rbtFlags = "";
-      if (bugId.isPresent()) {
-        rbtFlags += " --bugs-closed " + bugId.get();
-      }
-      if (previousRbId.isPresent()) {
-        rbtFlags += " --depends-on=" + previousRbId.get();
-      }
-      e.arg("--rbt-flags").arg(rbtFlags);
+    String rbtFlags = "";
+    if (bugId.isPresent()) {
+      rbtFlags += " --bugs-closed " + bugId.get();
+    }
+    if (previousRbId.isPresent()) {
+      rbtFlags += " --depends-on=" + previousRbId.get();
+    }
+    addRbtFlags(e, rbtFlags);
+
+    synchronized (configLock) {
+      // ensure we don't use that
+      unsetReviewIdInGitConfig(configBranch);
+      BufferedResult r = e.toBuffer();
+      failIfInvalidResult(r);
+      // we can leave the reviewid set because our next invocation will unset it
+      return getReviewIdInGitConfig(configBranch);
     }
-
-    BufferedResult r = e.toBuffer();
-    failIfInvalidResult(r);
-
-    // we can leave the reviewid set because our next invocation will unset it
-    return getReviewIdInGitConfig(currentBranch);
   }
 
   @Override
@@ -66,24 +114,94 @@ public class ReviewBoardImpl implements ReviewBoard {
     if (args.publish) {
       e.arg("--publish");
     }
-    previousRbId.ifPresent(s -> e.arg("--rbt-flags").arg(" --depends-on=" + s));
+    addRbtFlags(e, previousRbId.map(s -> " --depends-on=" + s).orElse(""));
 
     BufferedResult r = e.toBuffer();
     failIfInvalidResult(r);
   }
 
   @Override
-  public void dcommit(String rbId) {
-    Execute e = git().arg("review").arg("dcommit").arg("-r").arg(rbId);
-    BufferedResult r = e.toBuffer();
+  public String getDcommitMessage(String rbId, String revision) {
+    // `git review dcommit` can only amend HEAD, so stamp revision in our (sparse) worktree and read the message back
+    if (workTree == null) {
+      throw new IllegalStateException("dcommit messages have to be stamped in a worktree");
+    }
+    failIfInvalidResult(git().arg("reset").arg("-q").arg("--hard").arg(revision).toBuffer());
+    // the amended commit is thrown away, so don't let notes.rewriteRef copy its notes onto it; -c is passed down to
+    // the `git commit --amend` that `git review` runs
+    failIfInvalidResult(git().arg("-c").arg("notes.rewrite.amend=false").arg("review").arg("dcommit").arg("-r").arg(rbId).toBuffer());
+    BufferedResult r = git().arg("log").arg("-1").arg("--format=%B").arg("HEAD").toBuffer();
     failIfInvalidResult(r);
+    return StringUtils.stripEnd(r.out, "\n");
   }
 
-  private static Execute git() {
-    return new Execute("git").addEnvPaths();
+  @Override
+  public boolean isApproved(String rbId) {
+    // `git review` has no status command, but rbt can read the RB from the server in .reviewboardrc
+    BufferedResult r = new Execute("rbt").addEnvPaths().arg("api-get").arg("/review-requests/" + rbId + "/").toBuffer();
+    failIfInvalidResult(r);
+    JsonObject json = JsonParser.parseString(r.out).getAsJsonObject();
+    return json.getAsJsonObject("review_request").get("ship_it_count").getAsInt() > 0;
+  }
+
+  @Override
+  public ReviewBoard inWorkTree(File dir) {
+    return new ReviewBoardImpl(dir, excludes, rbtExcludes);
+  }
+
+  /** Passes {@code flags}, plus an {@code -X} for each exclude, to rbt. */
+  private void addRbtFlags(Execute e, String flags) {
+    String all = rbtFlags(flags);
+    if (!all.isEmpty()) {
+      e.arg("--rbt-flags").arg(all);
+    }
+  }
+
+  /** @return {@code flags} plus an {@code -X} for each exclude */
+  String rbtFlags(String flags) {
+    for (String glob : rbtExcludes) {
+      flags += " -X " + glob;
+    }
+    return flags;
   }
 
+  /**
+   * @return {@code excludes} (git pathspecs) as rbt's {@code -X} globs, which are fnmatch'd against the whole path from
+   *         the top of the repo, so {@code dir/} becomes {@code dir/*}, and a plain name matches a file or a directory
+   */
+  static List<String> rbtGlobs(List<String> excludes) {
+    List<String> globs = new ArrayList<>();
+    for (String exclude : excludes) {
+      // rbt runs from the top of the worktree, so pathspecs are from the top anyway
+      String p = StringUtils.removeStart(StringUtils.removeStart(exclude, ":(top)"), ":/");
+      if (p.startsWith(":") || p.isEmpty() || p.matches(".*\\s.*")) {
+        // other magic has no glob equivalent, and --rbt-flags is split on whitespace
+        log.warn("Can't pass exclude {} on to rbt; its files will still be uploaded", exclude);
+      } else if (p.endsWith("/")) {
+        globs.add(p + "*");
+      } else if (StringUtils.containsAny(p, "*?[")) {
+        // pathspecs are fnmatch'd without FNM_PATHNAME too, so * already matches across directories
+        globs.add(p);
+      } else {
+        globs.add(p);
+        globs.add(p + "/*");
+      }
+    }
+    return globs;
+  }
+
+  private Execute git() {
+    Execute e = new Execute("git").addEnvPaths();
+    if (workTree != null) {
+      e.arg("-C").arg(workTree.getPath());
+    }
+    return e;
+  }
+
+  // every Execute'd process comes through here
   private static void failIfInvalidResult(BufferedResult r) {
+    Metrics.recordSpawn();
+    Metrics.recordBytesRead(r.out.getBytes(StandardCharsets.UTF_8).length);
     if (r.exitValue != 0) {
       System.out.println(r.out);
       System.err.println(r.err);
@@ -91,6 +209,12 @@ public class ReviewBoardImpl implements ReviewBoard {
     }
   }
 
+  private String getCheckedOutBranch() {
+    BufferedResult r = git().arg("rev-parse").arg("--abbrev-ref").arg("HEAD").toBuffer();
+    failIfInvalidResult(r);
+    return chomp(r.out);
+  }
+
   private String getReviewIdInGitConfig(String currentBranch) {
     BufferedResult r = git().arg("config").arg("branch." + currentBranch + ".reviewid").toBuffer();
     failIfInvalidResult(r);
@@ -0,0 +1,254 @@
+package reviewbranch.apis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import reviewbranch.commands.ReviewCommand;
+
+/**
+ * Implements {@link ReviewBoard} by talking to the ReviewBoard Web API directly.
+ *
+ * This avoids {@code git review}/{@code rbt}'s Python startup per RB; {@link HttpURLConnection} keeps the connection
+ * to the server alive across calls. Authenticates with an API token.
+ */
+public class ReviewBoardRestImpl implements ReviewBoard {
+
+  private static final Joiner commas = Joiner.on(",");
+
+  private final String url;
+  private final String repository;
+  private final String token;
+  private final Git git;
+  // whether git is our own (an inWorkTree one), so we close it
+  private final boolean ownsGit;
+  // for connecting and for each read, or 0 to wait forever
+  private final int timeoutMillis;
+
+  /**
+   * @param url the RB server's root URL, e.g. {@code https://rb.example.com}
+   * @param repository the RB repository name (or id) to create RBs in
+   * @param token an RB API token
+   * @param git the repo whose HEAD is the "current commit"
+   */
+  public ReviewBoardRestImpl(String url, String repository, String token, Git git) {
+    this(url, repository, token, git, 0);
+  }
+
+  /** @param timeoutMillis how long to wait to connect, and for each read, before failing the request; 0 waits forever */
+  public ReviewBoardRestImpl(String url, String repository, String token, Git git, int timeoutMillis) {
+    this(url, repository, token, git, false, timeoutMillis);
+  }
+
+  private ReviewBoardRestImpl(String url, String repository, String token, Git git, boolean ownsGit, int timeoutMillis) {
+    this.url = StringUtils.stripEnd(url, "/");
+    this.repository = repository;
+    this.token = token;
+    this.git = git;
+    this.ownsGit = ownsGit;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public String createNewRbForCurrentCommit(//
+      ReviewCommand args,
+      String currentBranch,
+      Optional<String> previousRbId,
+      Optional<String> bugId) {
+    Map<String, String> create = new LinkedHashMap<>();
+    create.put("repository", repository);
+    JsonObject r = request("POST", "/api/review-requests/", create);
+    String rbId = r.getAsJsonObject("review_request").get("id").getAsString();
+
+    uploadDiff(rbId);
+
+    String message = git.getCommitMessage("HEAD");
+    Map<String, String> draft = new LinkedHashMap<>();
+    draft.put("summary", StringUtils.substringBefore(message, "\n"));
+    draft.put("description", StringUtils.substringAfter(message, "\n").trim());
+    draft.put("branch", currentBranch);
+    Optional.ofNullable(args.groups).ifPresent(gs -> draft.put("target_groups", gs));
+    Optional.ofNullable(args.reviewers).ifPresent(rs -> draft.put("target_people", rs));
+    Optional.ofNullable(args.testingDone).ifPresent(td -> draft.put("testing_done", td));
+    bugId.ifPresent(b -> draft.put("bugs_closed", b));
+    previousRbId.ifPresent(id -> draft.put("depends_on", id));
+    updateDraft(args, rbId, draft);
+    return rbId;
+  }
+
+  @Override
+  public void updateRbForCurrentCommit(ReviewCommand args, String rbId, Optional<String> previousRbId) {
+    uploadDiff(rbId);
+
+    Map<String, String> draft = new LinkedHashMap<>();
+    Optional.ofNullable(args.testingDone).ifPresent(td -> draft.put("testing_done", td));
+    Optional.ofNullable(args.diffDescription).ifPresent(dd -> draft.put("changedescription", dd));
+    previousRbId.ifPresent(id -> draft.put("depends_on", id));
+    updateDraft(args, rbId, draft);
+  }
+
+  @Override
+  public void updateDependsOnForCurrentCommit(ReviewCommand args, String rbId, String dependsOn) {
+    // unlike rbt, the API can change depends-on without re-uploading the diff
+    Map<String, String> draft = new LinkedHashMap<>();
+    draft.put("depends_on", dependsOn);
+    updateDraft(args, rbId, draft);
+  }
+
+  @Override
+  public boolean canUpdateDependsOnAlone() {
+    return true;
+  }
+
+  @Override
+  public String getDcommitMessage(String rbId, String revision) {
+    // stamp the message with who gave it a ship it, like `git review dcommit`; restamping replaces the old stamp, so
+    // already-stamped commits come back unchanged
+    JsonObject r = request("GET", "/api/review-requests/" + rbId + "/reviews/?max-results=200", null, null);
+    List<String> approvers = new ArrayList<>();
+    for (JsonElement review : r.getAsJsonArray("reviews")) {
+      JsonObject o = review.getAsJsonObject();
+      if (o.get("ship_it").getAsBoolean()) {
+        String user = o.getAsJsonObject("links").getAsJsonObject("user").get("title").getAsString();
+        if (!approvers.contains(user)) {
+          approvers.add(user);
+        }
+      }
+    }
+    String message = git.getCommitMessage(revision).replaceAll("\n+(RB|A)=[^\n]*", "");
+    return message + "\n\nRB=" + rbId + "\nA=" + commas.join(approvers);
+  }
+
+  @Override
+  public boolean isApproved(String rbId) {
+    JsonObject r = request("GET", "/api/review-requests/" + rbId + "/", null, null);
+    return r.getAsJsonObject("review_request").get("ship_it_count").getAsInt() > 0;
+  }
+
+  @Override
+  public ReviewBoard inWorkTree(File dir) {
+    return new ReviewBoardRestImpl(url, repository, token, new GitImpl(dir, null, git.getExcludes()), true, timeoutMillis);
+  }
+
+  @Override
+  public void close() {
+    if (ownsGit) {
+      git.close();
+    }
+  }
+
+  private void uploadDiff(String rbId) {
+    // like rbt, diff against where the branch forked from the base, with any earlier unpushed commits in a parent diff,
+    // since their blobs (e.g. HEAD^'s) aren't in the server's repository yet
+    String mergeBase = git.getMergeBase("HEAD");
+    boolean needsParentDiff = !git.isMerged("HEAD^");
+    // diffs go up as multipart file fields, as git wrote them, since they needn't be UTF-8
+    String boundary = "review-branch-" + UUID.randomUUID();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writePart(body, boundary, "Content-Disposition: form-data; name=\"base_commit_id\"\r\n\r\n" + mergeBase);
+    writePart(body, boundary, "Content-Disposition: form-data; name=\"path\"; filename=\"diff\"\r\nContent-Type: text/x-patch\r\n\r\n");
+    git.writeReviewDiff("HEAD^", "HEAD", body);
+    if (needsParentDiff) {
+      writePart(body, boundary, "Content-Disposition: form-data; name=\"parent_diff_path\"; filename=\"parent_diff\"\r\nContent-Type: text/x-patch\r\n\r\n");
+      git.writeReviewDiff(mergeBase, "HEAD^", body);
+    }
+    writeUtf8(body, "\r\n--" + boundary + "--\r\n");
+    request("POST", "/api/review-requests/" + rbId + "/diffs/", "multipart/form-data; boundary=" + boundary, body.toByteArray());
+  }
+
+  /** Ends the previous part, if any, and starts a new one with {@code headersAndValue}. */
+  private static void writePart(ByteArrayOutputStream body, String boundary, String headersAndValue) {
+    writeUtf8(body, (body.size() == 0 ? "" : "\r\n") + "--" + boundary + "\r\n" + headersAndValue);
+  }
+
+  private static void writeUtf8(ByteArrayOutputStream body, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    body.write(bytes, 0, bytes.length);
+  }
+
+  private void updateDraft(ReviewCommand args, String rbId, Map<String, String> fields) {
+    if (args.publish) {
+      fields.put("public", "1");
+    }
+    request("PUT", "/api/review-requests/" + rbId + "/draft/", fields);
+  }
+
+  private JsonObject request(String method, String path, Map<String, String> fields) {
+    List<String> pairs = new ArrayList<>();
+    try {
+      for (Map.Entry<String, String> e : fields.entrySet()) {
+        pairs.add(URLEncoder.encode(e.getKey(), "UTF-8") + "=" + URLEncoder.encode(e.getValue(), "UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    return request(method, path, "application/x-www-form-urlencoded", Joiner.on("&").join(pairs).getBytes(StandardCharsets.UTF_8));
+  }
+
+  private JsonObject request(String method, String path, String contentType, byte[] body) {
+    try {
+      HttpURLConnection c = (HttpURLConnection) new URL(url + path).openConnection();
+      c.setRequestMethod(method);
+      c.setConnectTimeout(timeoutMillis);
+      c.setReadTimeout(timeoutMillis);
+      c.setRequestProperty("Accept", "application/json");
+      c.setRequestProperty("Authorization", "token " + token);
+      if (body != null) {
+        c.setRequestProperty("Content-Type", contentType);
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = c.getOutputStream()) {
+          out.write(body);
+        }
+      }
+      int code = c.getResponseCode();
+      // always read the whole body, so the connection can be reused
+      String response = read(code >= 400 ? c.getErrorStream() : c.getInputStream());
+      if (code >= 400) {
+        System.err.println(response);
+        throw new IllegalStateException("ReviewBoard failed: " + method + " " + path + " " + code);
+      }
+      JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+      if (!"ok".equals(json.get("stat").getAsString())) {
+        System.err.println(response);
+        throw new IllegalStateException("ReviewBoard failed: " + method + " " + path);
+      }
+      return json;
+    } catch (IOException e) {
+      throw new IllegalStateException("ReviewBoard failed: " + method + " " + path, e);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try (InputStream i = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Metrics.recordBytesRead(ByteStreams.copy(i, out));
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+}
@@ -8,8 +8,8 @@ public class ReviewId {
 
   private static final Pattern rbRegex = Pattern.compile("RB=(\\d+)");
 
-  public static Optional<String> getFromNoteOrCommitMessage(Git git, String message) {
-    Optional<String> rbId = git.getNote("reviewid");
+  public static Optional<String> getFromNoteOrCommitMessage(NotesSnapshot reviewIds, String revision, String message) {
+    Optional<String> rbId = reviewIds.get(revision);
     // See if this is a rebased commit with an existing reviewid
     if (!rbId.isPresent()) {
       if (message != null) {
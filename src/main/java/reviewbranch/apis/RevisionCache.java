@@ -0,0 +1,92 @@
+package reviewbranch.apis;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.base.Joiner;
+
+/**
+ * The rev lists of recent runs, in {@code .git/review-branch/revisions}, keyed by the base and tip commit ids they
+ * were listed from.
+ *
+ * The revs are full commit ids, since an abbreviation that was unique when it was listed can become ambiguous as the
+ * repo grows, and a cached one would be reused long after that.
+ *
+ * A rev list only depends on those two commits, so back-to-back commands on an unchanged branch (e.g.
+ * {@code merge-approved} after {@code review}) reuse it instead of walking the history back to the merge base again.
+ * The file is only rewritten when a list is added (or an abbreviated one dropped), not on every run.
+ */
+class RevisionCache {
+
+  private static final int maxEntries = 32;
+  private final File file;
+  // "<base id> <tip id>" -> revs, least recently listed first
+  private final LinkedHashMap<String, List<String>> entries = new LinkedHashMap<>();
+  // whether entries differ from the file
+  private boolean changed = false;
+
+  RevisionCache(File gitDir) {
+    this.file = new File(gitDir, "review-branch/revisions");
+    if (file.exists()) {
+      try {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+          String[] parts = line.split(" ");
+          // skip lists of abbreviated ids, from before we kept full ones
+          if (parts.length >= 2 && Arrays.stream(parts).allMatch(p -> p.length() >= 40)) {
+            entries.put(parts[0] + " " + parts[1], new ArrayList<>(Arrays.asList(parts).subList(2, parts.length)));
+          } else {
+            changed = true;
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + file, e);
+      }
+    }
+  }
+
+  synchronized Optional<List<String>> get(String baseId, String tipId) {
+    List<String> revs = entries.get(baseId + " " + tipId);
+    return revs == null ? Optional.empty() : Optional.of(new ArrayList<>(revs));
+  }
+
+  synchronized void put(String baseId, String tipId, List<String> revs) {
+    String key = baseId + " " + tipId;
+    // re-insert so the least recently listed entries are the ones dropped
+    List<String> old = entries.remove(key);
+    entries.put(key, new ArrayList<>(revs));
+    changed |= !revs.equals(old);
+    for (Iterator<String> i = entries.keySet().iterator(); entries.size() > maxEntries;) {
+      i.next();
+      i.remove();
+    }
+    if (!changed) {
+      return;
+    }
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, List<String>> e : entries.entrySet()) {
+      lines.add(e.getValue().isEmpty() ? e.getKey() : e.getKey() + " " + Joiner.on(" ").join(e.getValue()));
+    }
+    try {
+      // write then rename, so a crash (or a worktree's run) can't leave a truncated file
+      file.getParentFile().mkdirs();
+      Path tmp = Files.createTempFile(file.getParentFile().toPath(), "revisions", ".tmp");
+      Files.write(tmp, lines, StandardCharsets.UTF_8);
+      Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+    changed = false;
+  }
+
+}
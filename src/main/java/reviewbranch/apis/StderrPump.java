@@ -0,0 +1,51 @@
+package reviewbranch.apis;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+
+/**
+ * Copies a child process's stderr to whatever {@link System#err} is when each chunk arrives, instead of the process
+ * inheriting the JVM's own stderr.
+ *
+ * The daemon points {@link System#err} at the client's socket while it runs a command, so this is how git's errors
+ * (and warnings) reach the client rather than the terminal the daemon was started in.
+ */
+class StderrPump extends Thread {
+
+  private final InputStream err;
+
+  /** @return a pump for {@code process}'s stderr, already started; it ends when the process does */
+  static StderrPump start(Process process) {
+    StderrPump pump = new StderrPump(process.getErrorStream());
+    pump.start();
+    return pump;
+  }
+
+  private StderrPump(InputStream err) {
+    super("stderr-pump");
+    this.err = err;
+    // so a long-lived process's pump (e.g. cat-file's) doesn't keep the JVM running
+    setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    byte[] buffer = new byte[8192];
+    try (InputStream in = err) {
+      for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+        PrintStream to = System.err;
+        to.write(buffer, 0, n);
+        to.flush();
+      }
+    } catch (IOException e) {
+      // the process is gone
+    }
+  }
+
+  /** Waits for everything the (exited) process wrote to be copied, so it comes out before whatever we write next. */
+  void await() throws InterruptedException {
+    join();
+  }
+
+}
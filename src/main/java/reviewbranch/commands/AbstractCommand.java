@@ -1,18 +1,65 @@
 package reviewbranch.commands;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
+import com.github.rvesse.airline.annotations.Option;
+
 import reviewbranch.ReviewBranch;
 import reviewbranch.apis.Git;
+import reviewbranch.apis.GitImpl;
+import reviewbranch.apis.JGitImpl;
 import reviewbranch.apis.ReviewBoard;
+import reviewbranch.apis.ReviewBoardImpl;
+import reviewbranch.apis.ReviewBoardRestImpl;
 
 /**
  * An interface for {@link ReviewBranch} commands.
  */
 public abstract class AbstractCommand {
 
+  @Option(name = { "--rb-url" }, description = "talk to this ReviewBoard server's API directly instead of via `git review` (uses $RB_API_TOKEN)")
+  public String rbUrl;
+
+  @Option(name = { "--rb-repository" }, description = "the ReviewBoard repository name, with --rb-url")
+  public String rbRepository;
+
+  @Option(name = { "--metrics-out" }, description = "also write the run's timings to this file as JSON")
+  public String metricsOut;
+
+  @Option(name = { "--jgit" }, description = "read commits and notes in-process with JGit instead of forking git")
+  public boolean jgit;
+
+  @Option(name = { "--base" }, description = "the upstream ref to review and merge against (default: git config reviewbranch.base, or origin/master)")
+  public String base;
+
+  @Option(name = { "--exclude" }, description = "csv of pathspecs (e.g. package-lock.json,vendor/) to leave out of diffs, hashes and uploads, on top of .reviewbranchignore")
+  public String exclude;
+
   public abstract void run(Git git, ReviewBoard rb);
 
+  public Git createGit() {
+    GitImpl git = new GitImpl(null, base, exclude == null ? Collections.emptyList() : Arrays.asList(exclude.split(",")));
+    return jgit ? JGitImpl.open(git, base) : git;
+  }
+
+  public ReviewBoard createReviewBoard(Git git) {
+    if (rbUrl == null) {
+      return new ReviewBoardImpl(null, git.getExcludes());
+    }
+    String token = System.getenv("RB_API_TOKEN");
+    if (rbRepository == null || token == null) {
+      throw new IllegalArgumentException("--rb-url requires --rb-repository and $RB_API_TOKEN");
+    }
+    return new ReviewBoardRestImpl(rbUrl, rbRepository, token, git, rbTimeoutMillis());
+  }
+
+  /** @return how long ReviewBoard API requests can wait to connect, or for each read, before failing; 0 waits forever */
+  protected int rbTimeoutMillis() {
+    return 0;
+  }
+
   public void ensureGitNotesConfigured(Git git) {
     addConfigIfNeeded(git, "notes.displayRef", "refs/notes/reviewid");
     addConfigIfNeeded(git, "notes.displayRef", "refs/notes/reviewlasthash");
@@ -20,6 +67,16 @@ public abstract class AbstractCommand {
     addConfigIfNeeded(git, "notes.rewriteRef", "refs/notes/reviewlasthash");
   }
 
+  /** @return the local branch that {@link Git#getBase()} tracks, e.g. master for origin/master */
+  protected static String getBaseBranch(Git git) {
+    String base = git.getBase();
+    List<String> branches = git.getLocalBranches();
+    if (branches.contains(base) || !base.contains("/")) {
+      return base;
+    }
+    return base.substring(base.indexOf('/') + 1);
+  }
+
   private static void addConfigIfNeeded(Git git, String key, String value) {
     List<String> current = git.getMultipleValueConfig(key);
     if (!current.contains(value)) {
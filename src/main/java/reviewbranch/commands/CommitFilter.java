@@ -0,0 +1,118 @@
+package reviewbranch.commands;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.jooq.lambda.Seq;
+
+/**
+ * Decides which commits {@link ReviewCommand} skips, from their metadata alone (the message, and if a rule needs them
+ * the changed paths and sizes), so skipped commits never have their diff generated.
+ *
+ * Besides the built-in rules ({@code wip:} commits, {@code fixup!}/{@code squash!} commits that are about to be
+ * squashed anyway, {@code --skip-paths}, and commits that only touch excluded paths, which would have an empty diff),
+ * callers can pass their own {@link Rule}s.
+ */
+class CommitFilter {
+
+  /** The metadata that rules can look at; each is only read if a rule asks for it. */
+  interface Commit {
+    String rev();
+
+    String message();
+
+    /** @see reviewbranch.apis.Git#getChangedPaths(String) */
+    Map<String, Long> changedPaths();
+  }
+
+  interface Rule {
+    /** @return why {@code commit} should be skipped, or empty to leave it to the next rule */
+    Optional<String> skip(Commit commit);
+  }
+
+  private final List<Rule> rules;
+  // each rev's decision, so however many times it's asked about (e.g. by the prefetch, then the review), a commit is
+  // only run through the rules, and counted, once
+  private final Map<String, Optional<String>> decided = new HashMap<>();
+
+  /**
+   * @return the built-in rules, plus skipping commits that only touch paths matching {@code skipPaths} (csv of globs),
+   *         or only {@code excludes}
+   */
+  static CommitFilter builtIn(String skipPaths, List<String> excludes) {
+    List<Rule> rules = new ArrayList<>();
+    rules.add(c -> prefixed(c.message(), "wip:"));
+    rules.add(c -> prefixed(c.message(), "fixup!", "squash!"));
+    if (!excludes.isEmpty()) {
+      // changed paths leave out the excluded ones
+      rules.add(c -> c.changedPaths().isEmpty() ? Optional.of("only touches excluded paths") : Optional.empty());
+    }
+    if (skipPaths != null) {
+      rules.add(onlyTouches(Arrays.asList(skipPaths.split(","))));
+    }
+    return new CommitFilter(rules);
+  }
+
+  CommitFilter(List<Rule> rules) {
+    this.rules = rules;
+  }
+
+  /** @return why {@code commit} should be skipped, if any rule says it should */
+  Optional<String> skip(Commit commit) {
+    synchronized (decided) {
+      Optional<String> known = decided.get(commit.rev());
+      if (known != null) {
+        return known;
+      }
+    }
+    Optional<String> reason = Optional.empty();
+    for (Rule rule : rules) {
+      reason = rule.skip(commit);
+      if (reason.isPresent()) {
+        break;
+      }
+    }
+    synchronized (decided) {
+      // if another thread decided first, keep its answer
+      Optional<String> known = decided.putIfAbsent(commit.rev(), reason);
+      return known != null ? known : reason;
+    }
+  }
+
+  /** @return how many distinct commits were skipped, i.e. how many diffs we didn't generate */
+  int skippedCount() {
+    synchronized (decided) {
+      return (int) decided.values().stream().filter(Optional::isPresent).count();
+    }
+  }
+
+  private static Optional<String> prefixed(String message, String... prefixes) {
+    for (String prefix : prefixes) {
+      if (message != null && message.startsWith(prefix)) {
+        return Optional.of("commit with prefix " + prefix);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** Skips commits whose every changed path matches one of {@code globs}; like .gitignore, a glob without a / matches file names. */
+  static Rule onlyTouches(List<String> globs) {
+    List<PathMatcher> matchers = Seq.seq(globs).map(String::trim).filter(g -> !g.isEmpty()).map(g -> {
+      PathMatcher m = FileSystems.getDefault().getPathMatcher("glob:" + g);
+      return g.contains("/") ? m : (PathMatcher) p -> m.matches(p.getFileName());
+    }).toList();
+    return c -> {
+      Map<String, Long> paths = c.changedPaths();
+      boolean all = !paths.isEmpty() && Seq.seq(paths.keySet()).allMatch(path -> Seq.seq(matchers).anyMatch(m -> m.matches(Paths.get(path))));
+      return all ? Optional.of("only touches --skip-paths") : Optional.empty();
+    };
+  }
+
+}
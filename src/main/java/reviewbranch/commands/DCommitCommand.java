@@ -7,8 +7,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.rvesse.airline.annotations.Command;
+import com.github.rvesse.airline.annotations.Option;
 
 import reviewbranch.apis.Git;
+import reviewbranch.apis.Metrics;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
 import reviewbranch.apis.ReviewId;
 
@@ -17,49 +20,92 @@ public class DCommitCommand extends AbstractCommand {
 
   private static final Logger log = LoggerFactory.getLogger(DCommitCommand.class);
 
+  @Option(name = { "--resume" }, description = "continue a dcommit that failed part way through, reusing the commits it already stamped")
+  public boolean resume;
+
   @Override
   public void run(Git git, ReviewBoard rb) {
     List<String> revs = git.getRevisionsFromOriginMaster();
     log.info("Found revs {}", revs);
 
-    boolean firstRev = true;
-    for (String rev : revs) {
-      if (firstRev) {
-        log.info("Resetting to {}", rev);
-        git.resetHard(rev);
-        firstRev = false;
-      } else {
-        // normally we would just cherry pick rev, but that
-        // looses the notes, so we need to resetHard to rev,
-        // copy it's notes, then jump back to where we were
-        String lastAmendedCommit = git.getCurrentCommit();
-        git.resetHard(rev);
-        String message = git.getCurrentCommitMessage();
-        Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(git, message);
-        Optional<String> reviewlasthash = git.getNote("reviewlasthash");
-        git.resetHard(lastAmendedCommit);
+    NotesSnapshot reviewIds = git.getNotes("reviewid");
+    NotesSnapshot lastDiffHashes = git.getNotes("reviewlasthash");
 
-        // now we can go back and cherry pick
-        log.info("Cherry picking {}", rev);
-        git.cherryPick(rev);
+    if (revs.isEmpty()) {
+      return;
+    }
 
-        // and restore the metadata on the picked commit (although
-        // if we didn't have any, e.g. this is a new un-RB'd commit,
-        // just skip it and keep going)
-        if (rbId.isPresent()) {
-          git.setNote("reviewid", rbId.get());
-          git.setNote("reviewlasthash", reviewlasthash.get());
-        }
+    // write the stamped chain as new commits on the original trees, so nothing is checked out or cherry-picked, and
+    // only move the user's branch once, at the end
+    Journal journal = Journal.open(git, "dcommit", resume);
+    boolean finished = false;
+    try {
+      try {
+        stamp(git, rb, revs, reviewIds, lastDiffHashes, journal);
+      } finally {
+        git.flushNotes();
       }
-
-      Optional<String> rbId = git.getNote("reviewid");
-      if (rbId.isPresent()) {
-        rb.dcommit(rbId.get());
-        log.info("Updated RB: " + rbId.get());
+      finished = true;
+    } finally {
+      if (finished) {
+        journal.finish();
       } else {
-        log.info("Skipped rev: {} (no RB found)", rev);
+        journal.abort(git);
       }
     }
   }
 
+  private void stamp(Git git, ReviewBoard rb, List<String> revs, NotesSnapshot reviewIds, NotesSnapshot lastDiffHashes, Journal journal) {
+    // `git review dcommit` needs a HEAD to amend, so stamp from our worktree
+    try (WorkTree.Lazy stamper = WorkTree.lazy(() -> WorkTree.open(git, rb, 1))) {
+      stamp(git, stamper, revs, reviewIds, lastDiffHashes, journal);
+    }
+  }
+
+  private void stamp(Git git, WorkTree.Lazy stamper, List<String> revs, NotesSnapshot reviewIds, NotesSnapshot lastDiffHashes, Journal journal) {
+    String parent = null;
+    // a failed run's stamped commits are only reusable while we're building the same chain it was
+    boolean replaying = true;
+    for (String rev : revs) {
+      long start = System.nanoTime();
+      try {
+        String message = git.getCommitMessage(rev);
+        Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(reviewIds, rev, message);
+        Optional<String[]> stamped = replaying ? journal.get(rev, "stamped") : Optional.empty();
+        String newRev;
+        if (stamped.isPresent()) {
+          newRev = stamped.get()[0];
+          log.info("Skipped rev: {} (stamped before the last run failed)", rev);
+        } else {
+          replaying = false;
+          String newMessage = message;
+          if (rbId.isPresent()) {
+            newMessage = stamper.get().rb.getDcommitMessage(rbId.get(), rev);
+            log.info("Updated RB: " + rbId.get());
+          } else {
+            log.info("Skipped rev: {} (no RB found)", rev);
+          }
+          // nothing up to and including this commit changed, so keep it as is
+          newRev = parent == null && newMessage.equals(message) ? rev : git.rewriteCommit(rev, parent == null ? rev + "^" : parent, newMessage);
+          journal.record(rev, "stamped", newRev);
+        }
+        if (newRev.equals(rev)) {
+          continue;
+        }
+        // notes don't follow the rewrite, so copy them over; they're written in bulk by flushNotes
+        rbId.ifPresent(id -> git.setNote("reviewid", newRev, id));
+        lastDiffHashes.get(rev).ifPresent(hash -> git.setNote("reviewlasthash", newRev, hash));
+        parent = newRev;
+      } finally {
+        Metrics.recordRevTime(rev, System.nanoTime() - start);
+      }
+    }
+    if (parent != null) {
+      // the trees are the same, so the user's index and files already match the new tip
+      String oldHead = revs.get(revs.size() - 1);
+      git.updateHead(parent, oldHead);
+      journal.movedHead(oldHead, parent);
+    }
+  }
+
 }
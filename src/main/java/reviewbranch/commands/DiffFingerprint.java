@@ -0,0 +1,212 @@
+package reviewbranch.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Optional;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Fingerprints a {@code -U0} diff as it's streamed through, in a way that survives rebases onto unrelated changes: the
+ * {@code index <hash>..<hash>} lines, and each hunk header's function context, are dropped.
+ *
+ * Each hunk is hashed on its own, starting with its {@code -a,b +c,d} positions, then each file from its header lines
+ * (i.e. its paths) and hunk hashes, then the diff from its file hashes, so moving lines within or between files changes
+ * the fingerprint. The result is prefixed with {@link #version}, so notes written with the original plain SHA-1 of the
+ * diff, or with the {@link #positionlessVersion} fingerprint, can be told apart (see {@link ReviewCommand#hashDiff}).
+ */
+class DiffFingerprint extends OutputStream {
+
+  static final String version = "v3";
+  // the fingerprint from before hunk positions were hashed
+  static final String positionlessVersion = "v2";
+  private static final byte[] diffLine = "diff --git ".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] hunkLine = "@@".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] indexLine = "index ".getBytes(StandardCharsets.UTF_8);
+
+  private final Hasher diff = Hashing.sha1().newHasher();
+  private Hasher file;
+  private Hasher hunk;
+  // the start of the current line, until we know which kind of line it is
+  private final ByteArrayOutputStream start = new ByteArrayOutputStream();
+  private boolean classified = false;
+  // where the rest of the current line goes, or null to drop it
+  private Hasher sink;
+  private String fingerprint;
+  private final boolean positions;
+  // whether the current line is a hunk header, which we hash once it's all there
+  private boolean hunkHeader;
+
+  DiffFingerprint() {
+    this(true);
+  }
+
+  /** @param positions whether to hash each hunk's positions, or fingerprint like {@link #positionlessVersion} did */
+  DiffFingerprint(boolean positions) {
+    this.positions = positions;
+  }
+
+  /** @return whether {@code hash} is a fingerprint, rather than a legacy plain SHA-1 */
+  static boolean isFingerprint(Optional<String> hash) {
+    return hash.isPresent() && hash.get().startsWith(version + ":");
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (b == '\n') {
+      endLine();
+    } else if (classified) {
+      if (sink != null) {
+        sink.putByte((byte) b);
+      }
+    } else {
+      start.write(b);
+      if (!hunkHeader) {
+        classify(false);
+      }
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      if (!classified || b[i] == '\n') {
+        write(b[i++]);
+      } else {
+        // hash the rest of the line in one go
+        int j = i;
+        while (j < end && b[j] != '\n') {
+          j++;
+        }
+        if (sink != null) {
+          sink.putBytes(b, i, j - i);
+        }
+        i = j;
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    if (fingerprint != null) {
+      return;
+    }
+    // so a missing trailing newline doesn't change the fingerprint
+    if (start.size() > 0 || classified) {
+      endLine();
+    }
+    endFile();
+    fingerprint = (positions ? version : positionlessVersion) + ":" + diff.hash();
+  }
+
+  /** @return the fingerprint, once closed */
+  String fingerprint() {
+    if (fingerprint == null) {
+      throw new IllegalStateException("Not closed yet");
+    }
+    return fingerprint;
+  }
+
+  /** Decides what the current line is once its start is unambiguous (or it has ended). */
+  private void classify(boolean ended) {
+    byte[] bytes = start.toByteArray();
+    if (startsWith(bytes, diffLine)) {
+      endFile();
+      file = Hashing.sha1().newHasher();
+      sink = file;
+    } else if (startsWith(bytes, hunkLine)) {
+      if (!ended) {
+        hunkHeader = true;
+        return;
+      }
+      hunkHeader = false;
+      endHunk();
+      hunk = Hashing.sha1().newHasher();
+      byte[] header = hunkLine;
+      if (positions) {
+        // keep the positions, but drop the function context after the second @@, which isn't part of the change
+        int end = indexOf(bytes, hunkLine, hunkLine.length);
+        header = end < 0 ? bytes : Arrays.copyOf(bytes, end + hunkLine.length);
+      }
+      hunk.putBytes(header).putByte((byte) '\n');
+      sink = null;
+      bytes = new byte[0];
+    } else if (hunk == null && startsWith(bytes, indexLine)) {
+      sink = null;
+    } else if (!ended && (isPrefix(bytes, diffLine) || isPrefix(bytes, hunkLine) || (hunk == null && isPrefix(bytes, indexLine)))) {
+      // wait for more of the line
+      return;
+    } else {
+      // a hunk's content, or a file header (or anything before the first file)
+      sink = hunk != null ? hunk : file != null ? file : diff;
+    }
+    if (sink != null) {
+      sink.putBytes(bytes);
+    }
+    start.reset();
+    classified = true;
+  }
+
+  private void endLine() {
+    if (!classified) {
+      classify(true);
+    }
+    if (sink != null) {
+      sink.putByte((byte) '\n');
+    }
+    sink = null;
+    classified = false;
+  }
+
+  private void endHunk() {
+    if (hunk != null) {
+      (file != null ? file : diff).putBytes(hunk.hash().asBytes());
+      hunk = null;
+    }
+  }
+
+  private void endFile() {
+    if (file != null) {
+      endHunk();
+      diff.putBytes(file.hash().asBytes());
+      file = null;
+    }
+  }
+
+  private static boolean startsWith(byte[] bytes, byte[] prefix) {
+    return bytes.length >= prefix.length && isPrefix(prefix, bytes);
+  }
+
+  private static int indexOf(byte[] bytes, byte[] part, int from) {
+    for (int i = from; i + part.length <= bytes.length; i++) {
+      int j = 0;
+      while (j < part.length && bytes[i + j] == part[j]) {
+        j++;
+      }
+      if (j == part.length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return whether {@code bytes} is the start of {@code full} */
+  private static boolean isPrefix(byte[] bytes, byte[] full) {
+    if (bytes.length > full.length) {
+      return false;
+    }
+    for (int i = 0; i < bytes.length; i++) {
+      if (bytes[i] != full[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
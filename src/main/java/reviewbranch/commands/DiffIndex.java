@@ -0,0 +1,107 @@
+package reviewbranch.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.hash.Hashing;
+
+import reviewbranch.apis.Git;
+
+/**
+ * A local index, in {@code .git/review-branch/diff-index}, of the diff hash and RB that each commit was last uploaded
+ * with, keyed by the commit's parent tree and tree.
+ *
+ * A commit's diff only depends on those two trees (and {@link Git#getExcludes()}, which entries are also keyed by), so
+ * a hit lets {@link ReviewCommand} skip an unchanged commit without generating and hashing its diff.
+ *
+ * Entries are kept in the order they were last put, and only the {@link #maxEntries} most recent are kept, so RBs that
+ * were abandoned or submitted age out instead of being loaded on every run; a commit whose entry aged out is just
+ * diffed again.
+ */
+class DiffIndex {
+
+  static final int maxEntries = 5000;
+  private final File file;
+  private final int max;
+  // appended to keys, so changing the excludes doesn't skip commits whose diffs they'd change
+  private final String excludesKey;
+  // least recently put first
+  private final Map<String, String[]> entries = new LinkedHashMap<>();
+  private boolean changed = false;
+
+  static DiffIndex load(Git git, List<String> excludes) {
+    return new DiffIndex(new File(git.getGitDir(), "review-branch/diff-index"), excludes, maxEntries);
+  }
+
+  DiffIndex(File file, List<String> excludes, int max) {
+    this.file = file;
+    this.max = max;
+    this.excludesKey = excludes.isEmpty() ? "" : "#" + Hashing.sha1().hashString(String.join("\n", excludes), StandardCharsets.UTF_8).toString().substring(0, 12);
+    if (file.exists()) {
+      try {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+          String[] parts = line.split(" ");
+          if (parts.length == 3) {
+            entries.put(parts[0], new String[] { parts[1], parts[2] });
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + file, e);
+      }
+    }
+  }
+
+  /** @return the index key for {@code rev}, which is its parent's and its own tree */
+  static String key(Git git, String rev) {
+    return git.getTreeId(rev + "^") + ".." + git.getTreeId(rev);
+  }
+
+  /** @return whether the commit with {@code key} was last uploaded to {@code rbId} as {@code lastDiffHash} */
+  synchronized boolean isUploaded(String key, String rbId, Optional<String> lastDiffHash) {
+    String[] entry = entries.get(key + excludesKey);
+    return entry != null && lastDiffHash.isPresent() && entry[0].equals(lastDiffHash.get()) && entry[1].equals(rbId);
+  }
+
+  synchronized void put(String key, String diffHash, String rbId) {
+    // removed first, so it moves to the end
+    String[] old = entries.remove(key + excludesKey);
+    entries.put(key + excludesKey, new String[] { diffHash, rbId });
+    changed |= old == null || !old[0].equals(diffHash) || !old[1].equals(rbId);
+    Iterator<String> eldest = entries.keySet().iterator();
+    while (entries.size() > max) {
+      eldest.next();
+      eldest.remove();
+      changed = true;
+    }
+  }
+
+  synchronized void save() {
+    if (!changed) {
+      return;
+    }
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, String[]> e : entries.entrySet()) {
+      lines.add(e.getKey() + " " + e.getValue()[0] + " " + e.getValue()[1]);
+    }
+    try {
+      // write then rename, so a crash can't leave a truncated index
+      file.getParentFile().mkdirs();
+      File tmp = new File(file.getPath() + ".tmp");
+      Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+    changed = false;
+  }
+
+}
@@ -0,0 +1,132 @@
+package reviewbranch.commands;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Drops a diff's {@code index <hash>..<hash> <mode>} lines as it's streamed through, since their hashes change after
+ * rebases, and its trailing newline (or {@code \r\n}), like {@code chomp} did to the whole diff before.
+ *
+ * Only the start of each line is held back (long enough to tell if it's an index line), so memory use doesn't grow
+ * with the size of the diff.
+ */
+class IndexLineFilter extends FilterOutputStream {
+
+  private static final Pattern indexLine = Pattern.compile("index \\w+\\.\\.\\w+ \\d+");
+  private static final byte[] prefix = "index ".getBytes(StandardCharsets.UTF_8);
+  // comfortably longer than an index line with sha256 hashes
+  private static final int maxIndexLine = 256;
+
+  // the start of the current line, while it could still be an index line
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+  private boolean buffering = false;
+  // held back until we know it's not the last byte
+  private boolean pendingNewline = false;
+  // a \r, held back until we know whether it ends the diff's last line
+  private boolean pendingCr = false;
+  // whether pendingNewline is a \r\n
+  private boolean crlf = false;
+
+  IndexLineFilter(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (b == '\n') {
+      endLine();
+      return;
+    }
+    if (pendingCr) {
+      pendingCr = false;
+      writeContent('\r');
+    }
+    if (b == '\r') {
+      pendingCr = true;
+    } else {
+      writeContent(b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      if (buffering || pendingCr || b[i] == '\n' || b[i] == '\r') {
+        write(b[i++]);
+      } else {
+        // pass the rest of the line through in one go, up to a \r that might end it
+        int j = i;
+        while (j < end && b[j] != '\n' && b[j] != '\r') {
+          j++;
+        }
+        flushNewline();
+        out.write(b, i, j - i);
+        i = j;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (line.size() > 0) {
+      releaseLine();
+    }
+    // like the trailing newline, a trailing \r is dropped
+    super.close();
+  }
+
+  private void endLine() throws IOException {
+    // an index line ending in \r\n is content, as it was to the old regex
+    if (buffering && !pendingCr && indexLine.matcher(new String(line.toByteArray(), StandardCharsets.UTF_8)).matches()) {
+      // drop the line along with its newline
+      line.reset();
+      return;
+    }
+    if (buffering) {
+      releaseLine();
+    }
+    flushNewline();
+    pendingNewline = true;
+    crlf = pendingCr;
+    pendingCr = false;
+    // index lines only ever follow another line, so the first line is never buffered
+    buffering = true;
+  }
+
+  private void writeContent(int b) throws IOException {
+    if (buffering) {
+      line.write(b);
+      int n = line.size();
+      if (n > maxIndexLine || (n <= prefix.length && b != prefix[n - 1])) {
+        releaseLine();
+      }
+    } else {
+      flushNewline();
+      out.write(b);
+    }
+  }
+
+  private void releaseLine() throws IOException {
+    flushNewline();
+    line.writeTo(out);
+    line.reset();
+    buffering = false;
+  }
+
+  private void flushNewline() throws IOException {
+    if (pendingNewline) {
+      if (crlf) {
+        out.write('\r');
+      }
+      out.write('\n');
+      pendingNewline = false;
+    }
+  }
+
+}
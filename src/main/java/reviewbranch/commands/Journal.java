@@ -0,0 +1,122 @@
+package reviewbranch.commands;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+
+import reviewbranch.apis.Git;
+
+/**
+ * An append-only log, in {@code .git/review-branch/<command>.journal}, of each step a command has finished for each
+ * commit (e.g. a diff hashed, or an RB uploaded), so a run that fails (or is killed) part way through can be continued
+ * with {@code --resume} instead of redoing everything.
+ *
+ * Steps are keyed by commit id, and a commit's diff and parents never change, so replaying a step is safe even if the
+ * branch has been rebased since. The journal is deleted once its command succeeds.
+ */
+class Journal {
+
+  private static final Logger log = LoggerFactory.getLogger(Journal.class);
+  private final File file;
+  // "<rev> <step>" -> values, from the failed run we're resuming
+  private final Map<String, String> replay = new HashMap<>();
+  private OutputStream out;
+  // set once we've moved HEAD, so an abort can move it back
+  private String[] movedHead;
+
+  static Journal open(Git git, String command, boolean resume) {
+    return new Journal(new File(git.getGitDir(), "review-branch/" + command + ".journal"), resume);
+  }
+
+  Journal(File file, boolean resume) {
+    this.file = file;
+    if (!file.exists()) {
+      return;
+    }
+    if (!resume) {
+      log.warn("A previous run didn't finish; starting over (pass --resume to continue it instead)");
+      file.delete();
+      return;
+    }
+    try {
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        String[] parts = line.split(" ", 3);
+        // skip a line that was cut off by a crash
+        if (parts.length == 3) {
+          replay.put(parts[0] + " " + parts[1], parts[2]);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read " + file, e);
+    }
+    log.info("Resuming from {} completed steps", replay.size());
+  }
+
+  /** @return the values that a previous run recorded for {@code rev}'s {@code step}, if we're resuming it */
+  synchronized Optional<String[]> get(String rev, String step) {
+    return Optional.ofNullable(replay.get(rev + " " + step)).map(values -> values.split(" "));
+  }
+
+  /** Appends that {@code rev}'s {@code step} is done, flushing immediately so it survives the process dying. */
+  synchronized void record(String rev, String step, String... values) {
+    try {
+      if (out == null) {
+        file.getParentFile().mkdirs();
+        out = new FileOutputStream(file, true);
+      }
+      out.write((rev + " " + step + " " + Joiner.on(" ").join(values) + "\n").getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+  }
+
+  /** Records that we've moved HEAD from {@code from} to {@code to}. */
+  synchronized void movedHead(String from, String to) {
+    record("HEAD", "moved", from, to);
+    movedHead = new String[] { from, to };
+  }
+
+  /** The command succeeded, so there's nothing to resume. */
+  synchronized void finish() {
+    close();
+    file.delete();
+  }
+
+  /** The command failed; keeps the journal for {@code --resume}, and moves HEAD back if we'd moved it. */
+  synchronized void abort(Git git) {
+    close();
+    if (movedHead != null) {
+      log.info("Restoring HEAD to {}", movedHead[0]);
+      try {
+        git.updateHead(movedHead[0], movedHead[1]);
+      } catch (RuntimeException e) {
+        // don't hide the failure that got us here
+        log.error("Could not restore HEAD to " + movedHead[0], e);
+      }
+    }
+  }
+
+  private void close() {
+    try {
+      if (out != null) {
+        out.close();
+        out = null;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+  }
+
+}
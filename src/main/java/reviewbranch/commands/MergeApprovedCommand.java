@@ -1,51 +1,138 @@
 package reviewbranch.commands;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
-import org.jooq.lambda.Seq;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.github.rvesse.airline.annotations.Command;
+import com.github.rvesse.airline.annotations.Option;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
+import reviewbranch.apis.ReviewId;
 
-@Command(name = "merge-approved", description = "Merges commits whose RBs been approved to master")
+@Command(name = "merge-approved", description = "Merges commits whose RBs been approved to master (or the --base branch)")
 public class MergeApprovedCommand extends AbstractCommand {
 
   private static final Logger log = LoggerFactory.getLogger(MergeApprovedCommand.class);
-  private static final Pattern approvalPattern = Pattern.compile("\\nA=[^\\n]+");
-  
+  static final Pattern approvalPattern = Pattern.compile("\\nA=[^\\n]+");
+
+  @Option(name = { "--rb-status" }, description = "ask ReviewBoard which RBs have a ship it, instead of looking for the A= lines written by dcommit")
+  public boolean rbStatus;
+
+  @Option(name = { "-j", "--jobs" }, description = "with --rb-status, look up this many RBs at once")
+  public int jobs = 8;
+
+  @Option(name = { "--timeout" }, description = "with --rb-status, seconds to wait for the RBs' statuses before treating the rest as not approved")
+  public int timeoutSeconds = 30;
+
+  @Override
+  protected int rbTimeoutMillis() {
+    // so a hung lookup's connection gives up too, instead of only us giving up on it
+    return rbStatus ? timeoutSeconds * 1000 : 0;
+  }
+
   @Override
   public void run(Git git, ReviewBoard rb) {
     List<String> revs = git.getRevisionsFromOriginMaster();
     log.info("Found revs {}", revs);
 
-    Optional<String> maxApprovedRev = Optional.empty();
+    Optional<String> maxApprovedRev = rbStatus ? findApprovedOnRb(git, rb, revs) : findApprovedInMessages(git, revs);
+
+    if (!maxApprovedRev.isPresent()) {
+      log.info("No approved RBs found");
+    } else {
+      String target = getBaseBranch(git);
+      if (git.getCurrentBranch().equals(target)) {
+        git.mergeFf(maxApprovedRev.get());
+      } else {
+        // move the target without checking it out, so the user's checkout isn't touched
+        git.fastForward(target, maxApprovedRev.get());
+      }
+      log.info("Merged {} through {}, you should be able to push {} now", target, maxApprovedRev.get(), target);
+    }
+  }
 
+  private Optional<String> findApprovedInMessages(Git git, List<String> revs) {
+    Optional<String> maxApprovedRev = Optional.empty();
     for (String rev : revs) {
-      log.info("Resetting to {}", rev);
-      git.resetHard(rev);
-      String commitMessage = git.getCurrentCommitMessage();
+      String commitMessage = git.getCommitMessage(rev);
       if (approvalPattern.matcher(commitMessage).find()) {
         maxApprovedRev = Optional.of(rev);
       } else {
-        log.info("RB {} is not approved yet, stopping examining more commits", git.getNote("reviewid"));
+        log.info("RB {} is not approved yet, stopping examining more commits", git.getNote("reviewid", rev));
         break;
       }
     }
+    return maxApprovedRev;
+  }
 
-    if (!maxApprovedRev.isPresent()) {
-      String tip = Seq.seq(revs).reverse().findFirst().get();
-      log.info("No approved RBs found, resetting back to the tip {}", tip);
-      git.resetHard(tip);
-    } else {
-      git.checkout("master");
-      git.mergeFf(maxApprovedRev.get());
-      log.info("Merged through {}, you should be able to git push now", maxApprovedRev.get());
+  /** Looks up every commit's RB at once, and returns the last commit of the approved prefix. */
+  private Optional<String> findApprovedOnRb(Git git, ReviewBoard rb, List<String> revs) {
+    if (revs.isEmpty()) {
+      return Optional.empty();
+    }
+    NotesSnapshot reviewIds = git.getNotes("reviewid");
+    // daemon threads, so a lookup that outlives its --timeout (e.g. a hung rbt) doesn't keep the JVM running
+    ExecutorService pool = Executors.newFixedThreadPool(
+      Math.max(1, Math.min(jobs, revs.size())),
+      new ThreadFactoryBuilder().setNameFormat("rb-status-%d").setDaemon(true).build());
+    try {
+      List<Optional<String>> rbIds = new ArrayList<>();
+      List<Future<Boolean>> approvals = new ArrayList<>();
+      for (String rev : revs) {
+        // rbId may be a squashed/fixed commit's multiple ids
+        Optional<String> rbId = ReviewId
+          .getFromNoteOrCommitMessage(reviewIds, rev, git.getCommitMessage(rev))
+          .map(id -> StringUtils.substringBefore(id, "\n"));
+        rbIds.add(rbId);
+        approvals.add(rbId.isPresent() ? pool.submit(() -> rb.isApproved(rbId.get())) : CompletableFuture.completedFuture(false));
+      }
+
+      // --timeout is for the whole lookup, not each RB, so a slow server can't make us wait once per commit
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+      Optional<String> maxApprovedRev = Optional.empty();
+      for (int i = 0; i < revs.size(); i++) {
+        if (!isApproved(approvals.get(i), rbIds.get(i), deadline)) {
+          log.info("RB {} is not approved yet, stopping examining more commits", rbIds.get(i));
+          break;
+        }
+        maxApprovedRev = Optional.of(revs.get(i));
+      }
+      return maxApprovedRev;
+    } finally {
+      // we don't need the status of anything after the first unapproved RB
+      pool.shutdownNow();
+    }
+  }
+
+  private boolean isApproved(Future<Boolean> approval, Optional<String> rbId, long deadline) {
+    try {
+      return approval.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      log.warn("Timed out asking for RB {}'s status", rbId.get());
+      return false;
+    } catch (ExecutionException e) {
+      // still merge the approved commits before it
+      log.warn("Could not get RB {}'s status, treating it as not approved", rbId.get(), e.getCause());
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
     }
   }
 
@@ -0,0 +1,170 @@
+package reviewbranch.commands;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.Metrics;
+import reviewbranch.apis.NotesSnapshot;
+import reviewbranch.apis.ReviewBoard;
+
+/**
+ * Runs {@link ReviewCommand} for several local branches at once, e.g. a stack of feature branches.
+ *
+ * Each commit is reviewed by just one branch: branches claim commits in order of how many they have, so with stacked
+ * branches each one only uploads the commits it adds. Each branch runs on its own thread and {@link WorkTree}, and a
+ * branch that sits on another branch's commit waits for just that commit's RB, so it can depend on it.
+ */
+class MultiBranchReview {
+
+  private static final Logger log = LoggerFactory.getLogger(MultiBranchReview.class);
+
+  private final ReviewCommand args;
+  private final Git git;
+  private final ReviewBoard rb;
+
+  MultiBranchReview(ReviewCommand args, Git git, ReviewBoard rb) {
+    this.args = args;
+    this.git = git;
+    this.rb = rb;
+  }
+
+  void run(//
+      List<String> branches,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      PatchIdIndex patchIds,
+      CommitFilter filter,
+      Journal journal) {
+    // list every branch up front, from this thread, since that also fills in Git's message cache
+    Map<String, List<String>> revsByBranch = new LinkedHashMap<>();
+    for (String branch : branches) {
+      List<String> revs = git.getRevisionsFromOriginMaster(branch);
+      log.info("Found revs {} on {}", revs, branch);
+      revsByBranch.put(branch, revs);
+      patchIds.addRevisions(revs);
+    }
+
+    // the RB that each commit's child should depend on, completed once the commit has been reviewed
+    Map<String, CompletableFuture<Optional<String>>> dependsOn = new HashMap<>();
+    Map<String, Set<String>> claimed = new LinkedHashMap<>();
+    List<String> order = new ArrayList<>(revsByBranch.keySet());
+    order.sort(Comparator.comparingInt(branch -> revsByBranch.get(branch).size()));
+    for (String branch : order) {
+      Set<String> revs = new HashSet<>();
+      for (String rev : revsByBranch.get(branch)) {
+        if (!dependsOn.containsKey(rev)) {
+          dependsOn.put(rev, new CompletableFuture<>());
+          revs.add(rev);
+        }
+      }
+      if (revs.isEmpty()) {
+        log.info("Skipped {} (all of its commits are on other branches)", branch);
+      } else {
+        claimed.put(branch, revs);
+      }
+    }
+    if (claimed.isEmpty()) {
+      return;
+    }
+
+    // every branch gets its own thread, since they may wait on each other
+    ExecutorService pool = Executors.newFixedThreadPool(claimed.size());
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      int i = 1;
+      for (Map.Entry<String, Set<String>> e : claimed.entrySet()) {
+        int workTree = i++;
+        futures.add(pool.submit(() -> {
+          review(e.getKey(), revsByBranch.get(e.getKey()), e.getValue(), workTree, dependsOn, reviewIds, lastDiffHashes, diffIndex, patchIds, filter, journal);
+          return null;
+        }));
+      }
+      waitForAll(futures);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private void review(//
+      String branch,
+      List<String> revs,
+      Set<String> claimed,
+      int workTree,
+      Map<String, CompletableFuture<Optional<String>>> dependsOn,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      PatchIdIndex patchIds,
+      CommitFilter filter,
+      Journal journal) {
+    try (WorkTree.Lazy wt = WorkTree.lazy(() -> {
+      // don't run `git worktree add` for several branches at once
+      synchronized (this) {
+        return WorkTree.open(git, rb, workTree);
+      }
+    })) {
+      Optional<String> previousRbId = Optional.empty();
+      String previous = null;
+      for (String rev : revs) {
+        if (claimed.contains(rev)) {
+          if (previous != null && !claimed.contains(previous)) {
+            // our parent commit is another branch's
+            previousRbId = dependsOn.get(previous).join();
+          }
+          Optional<String> dependsOnRbId = previousRbId;
+          previousRbId = Metrics.timeRev(
+            rev,
+            () -> args.reviewRev(git, wt, branch, new Prefetcher.Rev(git, rev, filter, journal), dependsOnRbId, reviewIds, lastDiffHashes, diffIndex, patchIds, journal));
+          dependsOn.get(rev).complete(previousRbId);
+        }
+        previous = rev;
+      }
+    } catch (RuntimeException e) {
+      // so branches that sit on ours fail too, instead of waiting forever
+      for (String rev : claimed) {
+        dependsOn.get(rev).completeExceptionally(e);
+      }
+      throw e;
+    }
+  }
+
+  /** Waits for every branch before rethrowing the first failure. */
+  private static void waitForAll(List<Future<?>> futures) {
+    RuntimeException failure = null;
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+        if (failure == null) {
+          failure = cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+}
@@ -0,0 +1,267 @@
+package reviewbranch.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jooq.lambda.Seq;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.Metrics;
+import reviewbranch.apis.NotesSnapshot;
+import reviewbranch.apis.ReviewBoard;
+import reviewbranch.apis.ReviewId;
+
+/**
+ * Runs {@link ReviewCommand}'s uploads on {@code --jobs} workers at once.
+ *
+ * Since {@code git review} uploads whatever HEAD is, each worker gets its own {@link WorkTree}. Only the depends-on
+ * links are inherently sequential, so RBs whose parent is also being created are uploaded without one, and get it
+ * patched on in a second pass once every RB id is known. If the {@link ReviewBoard} can't set just the depends-on
+ * (i.e. rbt), they wait for their parent's RB to be created instead.
+ */
+class ParallelReview {
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelReview.class);
+
+  private final ReviewCommand args;
+  private final Git git;
+  private final ReviewBoard rb;
+
+  ParallelReview(ReviewCommand args, Git git, ReviewBoard rb) {
+    this.args = args;
+    this.git = git;
+    this.rb = rb;
+  }
+
+  void run(//
+      String currentBranch,
+      List<String> revs,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      PatchIdIndex patchIds,
+      CommitFilter filter,
+      Journal journal) {
+    List<Upload> uploads = plan(revs, reviewIds, lastDiffHashes, diffIndex, patchIds, filter, journal);
+    if (uploads.isEmpty()) {
+      return;
+    }
+
+    boolean patchDependsOn = rb.canUpdateDependsOnAlone();
+    int jobs = Math.min(args.jobs, uploads.size());
+    BlockingQueue<WorkTree> workers = new ArrayBlockingQueue<>(jobs);
+    ExecutorService pool = Executors.newFixedThreadPool(jobs);
+    try {
+      for (int i = 1; i <= jobs; i++) {
+        workers.add(WorkTree.open(git, rb, i));
+      }
+      runAll(pool, workers, uploads, (u, w) -> {
+        try {
+          if (u.parent != null && !patchDependsOn) {
+            // the parent was submitted first, so it's already running on another worker
+            u.dependsOn = Optional.of(u.parent.created.join());
+          }
+          Metrics.timeRev(u.rev, () -> {
+            upload(currentBranch, u, w, journal);
+            patchIds.uploaded(u.rev, u.rbId.get(), u.diffHash);
+            diffIndex.put(u.key, u.diffHash, u.rbId.get());
+          });
+          u.created.complete(u.rbId.get());
+        } catch (RuntimeException e) {
+          // so our children fail too, instead of waiting forever
+          u.created.completeExceptionally(e);
+          throw e;
+        }
+      });
+      if (patchDependsOn) {
+        runAll(pool, workers, Seq.seq(uploads).filter(u -> u.parent != null).toList(), (u, w) -> patchDependsOn(u, w, journal));
+      }
+    } finally {
+      pool.shutdown();
+      // runAll waited for every step, so all of the workers are back
+      for (WorkTree w : workers) {
+        w.close();
+      }
+    }
+  }
+
+  /** Decides what each commit needs, without checking anything out. */
+  private List<Upload> plan(//
+      List<String> revs,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      PatchIdIndex patchIds,
+      CommitFilter filter,
+      Journal journal) {
+    List<Upload> uploads = new ArrayList<>();
+    Optional<String> previousRbId = Optional.empty();
+    Upload previous = null;
+    for (String rev : revs) {
+      long start = System.nanoTime();
+      try {
+        Prefetcher.Rev r = new Prefetcher.Rev(git, rev, filter, journal);
+        Optional<String> skipReason = r.skipReason();
+        if (skipReason.isPresent()) {
+          log.info("Skipping {} ({})", rev, skipReason.get());
+          continue;
+        }
+        String message = r.message();
+        Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(reviewIds, rev, message);
+        Optional<String> lastDiffHash = lastDiffHashes.get(rev);
+        if (!rbId.isPresent()) {
+          // before creating an RB, make sure this isn't a commit whose notes were lost
+          Optional<String[]> known = patchIds.find(git, rev);
+          if (known.isPresent()) {
+            rbId = Optional.of(known.get()[0]);
+            lastDiffHash = Optional.of(known.get()[1]);
+          }
+        }
+
+        String key = r.key();
+        Optional<String[]> uploaded = journal.get(rev, "uploaded");
+        if (uploaded.isPresent()) {
+          // a failed run got this far, and its notes may not have been written
+          String[] done = uploaded.get();
+          // (if our parent's RB is being created, we can't tell)
+          boolean parentKnown = previous == null || previous.rbId.isPresent();
+          if (parentKnown && done[2].equals(previousRbId.orElse("-"))) {
+            log.info("Skipped RB: " + done[0] + " (uploaded before the last run failed)");
+            git.setNote("reviewid", rev, done[0]);
+            git.setNote("reviewlasthash", rev, done[1]);
+            diffIndex.put(key, done[1], done[0]);
+            previousRbId = Optional.of(done[0]);
+            previous = null;
+            continue;
+          }
+          // its depends-on is stale (or not known yet), so update it instead of creating a second RB
+          rbId = Optional.of(done[0]);
+        }
+
+        if (rbId.isPresent() && diffIndex.isUploaded(key, rbId.get(), lastDiffHash)) {
+          log.info("Skipped RB: " + rbId.get() + " (unchanged trees)");
+          previousRbId = rbId;
+          previous = null;
+          continue;
+        }
+
+        String currentDiffHash = r.diffHash(lastDiffHash);
+        if (rbId.isPresent() && lastDiffHash.isPresent() && lastDiffHash.get().equals(currentDiffHash)) {
+          log.info("Skipped RB: " + rbId.get());
+          diffIndex.put(key, currentDiffHash, rbId.get());
+          previousRbId = rbId;
+          previous = null;
+          continue;
+        }
+
+        // rbId may be a squashed/fixed commit's multiple ids
+        Upload u = new Upload(rev, key, rbId.map(id -> StringUtils.substringBefore(id, "\n")), currentDiffHash);
+        u.bugId = ReviewCommand.findBugIdInCommitMessage(message);
+        if (previous != null && !previous.rbId.isPresent()) {
+          // our parent's RB is being created, so we won't know its id until it's done
+          u.parent = previous;
+        } else {
+          u.dependsOn = previousRbId;
+        }
+        uploads.add(u);
+        previousRbId = u.rbId;
+        previous = u;
+      } finally {
+        Metrics.recordRevTime(rev, System.nanoTime() - start);
+      }
+    }
+    return uploads;
+  }
+
+  private void upload(String currentBranch, Upload u, WorkTree w, Journal journal) {
+    w.git.resetHard(u.rev);
+    if (u.rbId.isPresent()) {
+      w.rb.updateRbForCurrentCommit(args, u.rbId.get(), u.dependsOn);
+      log.info("Updated RB: " + u.rbId.get());
+    } else {
+      u.rbId = Optional.of(w.rb.createNewRbForCurrentCommit(args, currentBranch, u.dependsOn, u.bugId));
+      log.info("Created RB: " + u.rbId.get());
+    }
+    journal.record(u.rev, "uploaded", u.rbId.get(), u.diffHash, u.dependsOn.orElse("-"));
+    git.setNote("reviewid", u.rev, u.rbId.get());
+    git.setNote("reviewlasthash", u.rev, u.diffHash);
+  }
+
+  private void patchDependsOn(Upload u, WorkTree w, Journal journal) {
+    String parentRbId = u.parent.rbId.get();
+    w.git.resetHard(u.rev);
+    w.rb.updateDependsOnForCurrentCommit(args, u.rbId.get(), parentRbId);
+    log.info("Set RB {} to depend on {}", u.rbId.get(), parentRbId);
+    journal.record(u.rev, "uploaded", u.rbId.get(), u.diffHash, parentRbId);
+  }
+
+  private interface Step {
+    void run(Upload u, WorkTree w);
+  }
+
+  /** Runs {@code step} for each upload on the pool, waiting for all of them before rethrowing the first failure. */
+  private static void runAll(ExecutorService pool, BlockingQueue<WorkTree> workers, List<Upload> uploads, Step step) {
+    List<Future<?>> futures = new ArrayList<>();
+    for (Upload u : uploads) {
+      futures.add(pool.submit(() -> {
+        WorkTree w = workers.take();
+        try {
+          step.run(u, w);
+        } finally {
+          workers.add(w);
+        }
+        return null;
+      }));
+    }
+    RuntimeException failure = null;
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /** A commit that needs its RB created or updated. */
+  private static class Upload {
+    private final String rev;
+    private final String key;
+    private final String diffHash;
+    // set by the worker that creates the RB, and read by the second pass
+    private volatile Optional<String> rbId;
+    private Optional<String> bugId = Optional.empty();
+    private Optional<String> dependsOn = Optional.empty();
+    // the upload whose RB we depend on, if it's being created in the same run
+    private Upload parent;
+    // our RB id once it's uploaded, for children that can't have their depends-on patched later
+    private final CompletableFuture<String> created = new CompletableFuture<>();
+
+    private Upload(String rev, String key, Optional<String> rbId, String diffHash) {
+      this.rev = rev;
+      this.key = key;
+      this.rbId = rbId;
+      this.diffHash = diffHash;
+    }
+  }
+
+}
@@ -0,0 +1,181 @@
+package reviewbranch.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jooq.lambda.Seq;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
+
+/**
+ * A local index, in {@code .git/review-branch/patch-ids}, of the RB (and diff hash) that each uploaded patch went to,
+ * keyed by its {@code git patch-id --stable}.
+ *
+ * Patch ids survive rebases and fresh clones, so when a commit has lost its {@code reviewid} note (e.g. it was rebased
+ * without {@code notes.rewriteRef}), {@link ReviewCommand} can re-attach it to its RB instead of creating a duplicate.
+ *
+ * Each entry also has the commit it was uploaded from and when, so entries whose commit has since been merged aren't
+ * re-attached (e.g. to a revert's revert), and entries that haven't been uploaded to in {@link #maxAgeDays} are dropped.
+ */
+class PatchIdIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(PatchIdIndex.class);
+  static final int maxAgeDays = 90;
+  private final File file;
+  private final NotesSnapshot reviewIds;
+  private final NotesSnapshot lastDiffHashes;
+  // patch id -> rb id, diff hash, commit (or - if unknown), epoch seconds
+  private final Map<String, String[]> entries = new HashMap<>();
+  // the commits we might look up, whose patch ids are all computed at once when the first one is needed
+  private final List<String> revs = new ArrayList<>();
+  // this run's commits' patch ids, once we've needed them
+  private final Map<String, String> patchIds = new HashMap<>();
+  // commits uploaded this run -> rb id, diff hash, indexed by save
+  private final Map<String, String[]> uploaded = new LinkedHashMap<>();
+  private boolean changed = false;
+
+  static PatchIdIndex load(Git git, NotesSnapshot reviewIds, NotesSnapshot lastDiffHashes) {
+    return new PatchIdIndex(new File(git.getGitDir(), "review-branch/patch-ids"), reviewIds, lastDiffHashes);
+  }
+
+  PatchIdIndex(File file, NotesSnapshot reviewIds, NotesSnapshot lastDiffHashes) {
+    this.file = file;
+    this.reviewIds = reviewIds;
+    this.lastDiffHashes = lastDiffHashes;
+    if (file.exists()) {
+      try {
+        for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+          String[] parts = line.split(" ");
+          if (parts.length == 5) {
+            entries.put(parts[0], new String[] { parts[1], parts[2], parts[3], parts[4] });
+          } else if (parts.length == 3) {
+            // from before we kept the commit and time; start its clock now
+            entries.put(parts[0], new String[] { parts[1], parts[2], "-", now() });
+            changed = true;
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Could not read " + file, e);
+      }
+    }
+  }
+
+  /** Adds commits that {@link #find(Git, String)} may be asked about. */
+  synchronized void addRevisions(List<String> revs) {
+    this.revs.addAll(revs);
+  }
+
+  /**
+   * Looks for an RB that {@code rev}'s patch was uploaded to before, e.g. before it was rebased without
+   * {@code notes.rewriteRef}, and if there is one (and the commit it was uploaded from hasn't been merged since), writes
+   * {@code rev}'s {@code reviewid} and {@code reviewlasthash} notes back.
+   *
+   * @return the RB id and the diff hash it was last uploaded with
+   */
+  synchronized Optional<String[]> find(Git git, String rev) {
+    if (!patchIds.containsKey(rev)) {
+      revs.add(rev);
+      computePatchIds(git);
+    }
+    String patchId = patchIds.get(rev);
+    String[] entry = patchId == null ? null : entries.get(patchId);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    if (!entry[2].equals("-") && !entry[2].equals(rev) && git.isMerged(entry[2])) {
+      // that RB is done with, so rev is a new change that happens to have the same patch
+      log.info("Not re-attaching {} to RB {}, whose commit {} is already merged", rev, entry[0], entry[2]);
+      entries.remove(patchId);
+      changed = true;
+      return Optional.empty();
+    }
+    log.info("Re-attached {} to RB {} by its patch id", rev, entry[0]);
+    git.setNote("reviewid", rev, entry[0]);
+    git.setNote("reviewlasthash", rev, entry[1]);
+    return Optional.of(entry);
+  }
+
+  /** Records that {@code rev} was uploaded to {@code rbId}, to be indexed by {@link #save(Git)}. */
+  synchronized void uploaded(String rev, String rbId, String diffHash) {
+    uploaded.put(rev, new String[] { rbId, diffHash });
+  }
+
+  /** Indexes this run's uploads, looking up any patch ids we don't have yet in one pass, and writes the index. */
+  synchronized void save(Git git) {
+    List<String> unknown = Seq.seq(uploaded.keySet()).filter(rev -> !patchIds.containsKey(rev)).toList();
+    if (!unknown.isEmpty()) {
+      patchIds.putAll(git.getPatchIds(unknown));
+    }
+    for (Map.Entry<String, String[]> e : uploaded.entrySet()) {
+      String patchId = patchIds.get(e.getKey());
+      if (patchId != null) {
+        put(patchId, e.getValue()[0], e.getValue()[1], e.getKey());
+      }
+    }
+    uploaded.clear();
+    // so the index doesn't grow forever with RBs that were merged (or abandoned) long ago
+    long cutoff = Long.parseLong(now()) - TimeUnit.DAYS.toSeconds(maxAgeDays);
+    changed |= entries.values().removeIf(entry -> Long.parseLong(entry[3]) < cutoff);
+    if (!changed) {
+      return;
+    }
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, String[]> e : entries.entrySet()) {
+      lines.add(e.getKey() + " " + String.join(" ", e.getValue()));
+    }
+    try {
+      // write then rename, so a crash can't leave a truncated index
+      file.getParentFile().mkdirs();
+      File tmp = new File(file.getPath() + ".tmp");
+      Files.write(tmp.toPath(), lines, StandardCharsets.UTF_8);
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not write " + file, e);
+    }
+    changed = false;
+  }
+
+  /** Computes the patch id of every commit we haven't yet in one pass, indexing the ones that already have an RB. */
+  private void computePatchIds(Git git) {
+    List<String> unknown = Seq.seq(revs).filter(rev -> !patchIds.containsKey(rev)).distinct().toList();
+    Map<String, String> ids = git.getPatchIds(unknown);
+    for (String rev : unknown) {
+      String patchId = ids.get(rev);
+      // so find doesn't compute it again, e.g. for a merge, which has no patch id
+      patchIds.put(rev, patchId);
+      Optional<String> rbId = reviewIds.get(rev);
+      Optional<String> lastDiffHash = lastDiffHashes.get(rev);
+      if (patchId != null && rbId.isPresent() && lastDiffHash.isPresent()) {
+        // e.g. commits reviewed before this index existed
+        put(patchId, StringUtils.substringBefore(rbId.get(), "\n"), lastDiffHash.get(), rev);
+      }
+    }
+  }
+
+  private void put(String patchId, String rbId, String diffHash, String rev) {
+    String[] old = entries.get(patchId);
+    if (old == null || !old[0].equals(rbId) || !old[1].equals(diffHash) || !old[2].equals(rev)) {
+      entries.put(patchId, new String[] { rbId, diffHash, rev, now() });
+      changed = true;
+    }
+  }
+
+  private static String now() {
+    return String.valueOf(System.currentTimeMillis() / 1000);
+  }
+
+}
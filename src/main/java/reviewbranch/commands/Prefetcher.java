@@ -0,0 +1,180 @@
+package reviewbranch.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
+import reviewbranch.apis.ReviewId;
+
+/**
+ * Reads the next commit's message, trees and diff hash on a background thread while {@link ReviewCommand} uploads the
+ * current one, so git isn't idle during uploads and ReviewBoard isn't idle while git diffs.
+ *
+ * Only reads happen ahead of time; whether and how each commit is uploaded, its depends-on, and its notes are still
+ * decided in order by {@link ReviewCommand#reviewRev}, which just finds the values already there (or reads them itself
+ * if the prefetch hasn't got to them yet).
+ */
+class Prefetcher implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(Prefetcher.class);
+
+  private final Git git;
+  private final NotesSnapshot reviewIds;
+  private final NotesSnapshot lastDiffHashes;
+  private final DiffIndex diffIndex;
+  private final Journal journal;
+  private final List<Rev> revs = new ArrayList<>();
+  private final List<Future<?>> reads = new ArrayList<>();
+  private final ExecutorService pool = Executors.newSingleThreadExecutor();
+
+  Prefetcher(//
+      Git git,
+      List<String> revs,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      CommitFilter filter,
+      Journal journal) {
+    this.git = git;
+    this.reviewIds = reviewIds;
+    this.lastDiffHashes = lastDiffHashes;
+    this.diffIndex = diffIndex;
+    this.journal = journal;
+    for (String rev : revs) {
+      this.revs.add(new Rev(git, rev, filter, journal));
+    }
+  }
+
+  /** @return the {@code i}th commit, after starting to read the one after it */
+  Rev take(int i) {
+    // whatever the previous commit's read hasn't done yet, it no longer needs
+    if (i > 0) {
+      reads.get(i - 1).cancel(false);
+    }
+    while (reads.size() <= Math.min(i + 1, revs.size() - 1)) {
+      Rev next = revs.get(reads.size());
+      reads.add(pool.submit(() -> read(next)));
+    }
+    return revs.get(i);
+  }
+
+  /** Stops reading ahead, waiting for a read in progress so nothing touches git (or the journal) after we return. */
+  @Override
+  public void close() {
+    for (Future<?> f : reads) {
+      f.cancel(false);
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Reads what {@link ReviewCommand#reviewRev} will need for {@code r}, skipping the diff if it won't need that. */
+  private void read(Rev r) {
+    try {
+      if (r.skipReason().isPresent()) {
+        return;
+      }
+      String message = r.message();
+      String key = r.key();
+      if (journal.get(r.rev, "uploaded").isPresent()) {
+        return;
+      }
+      Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(reviewIds, r.rev, message);
+      Optional<String> lastDiffHash = lastDiffHashes.get(r.rev);
+      if (rbId.isPresent() && diffIndex.isUploaded(key, rbId.get(), lastDiffHash)) {
+        return;
+      }
+      r.diffHash(lastDiffHash);
+    } catch (RuntimeException e) {
+      // reviewRev will read it again, and fail then if it's not a fluke
+      log.debug("Could not prefetch " + r.rev, e);
+    }
+  }
+
+  /** A commit's reads, each done once, by whichever of the prefetch or {@link ReviewCommand#reviewRev} gets there first. */
+  static class Rev implements CommitFilter.Commit {
+    final String rev;
+    private final Git git;
+    private final CommitFilter filter;
+    private final Journal journal;
+    private boolean messageRead;
+    private String message;
+    private Map<String, Long> changedPaths;
+    private Optional<String> skipReason;
+    private String key;
+    // the fingerprint, and maybe the legacy hashes
+    private String[] hashes;
+
+    Rev(Git git, String rev, CommitFilter filter, Journal journal) {
+      this.git = git;
+      this.rev = rev;
+      this.filter = filter;
+      this.journal = journal;
+    }
+
+    @Override
+    public String rev() {
+      return rev;
+    }
+
+    @Override
+    public synchronized String message() {
+      if (!messageRead) {
+        message = git.getCommitMessage(rev);
+        messageRead = true;
+      }
+      return message;
+    }
+
+    @Override
+    public synchronized Map<String, Long> changedPaths() {
+      if (changedPaths == null) {
+        changedPaths = git.getChangedPaths(rev);
+      }
+      return changedPaths;
+    }
+
+    /** @return why {@link CommitFilter} skips this commit, if it does */
+    synchronized Optional<String> skipReason() {
+      if (skipReason == null) {
+        skipReason = filter.skip(this);
+      }
+      return skipReason;
+    }
+
+    synchronized String key() {
+      if (key == null) {
+        key = DiffIndex.key(git, rev);
+      }
+      return key;
+    }
+
+    /**
+     * @return the commit's diff fingerprint (from the journal if a failed run already computed it), or
+     *         {@code lastDiffHash} itself if that's a legacy hash (a plain SHA-1, or an older fingerprint) that still
+     *         matches, so commits reviewed before the current fingerprint aren't all re-uploaded
+     */
+    synchronized String diffHash(Optional<String> lastDiffHash) {
+      boolean legacy = ReviewCommand.needsLegacyHash(lastDiffHash);
+      if (hashes == null || (legacy && hashes.length < 3)) {
+        hashes = ReviewCommand.journaledHashes(git, rev, legacy, journal);
+      }
+      return ReviewCommand.chooseHash(hashes, lastDiffHash);
+    }
+  }
+
+}
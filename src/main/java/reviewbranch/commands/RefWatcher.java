@@ -0,0 +1,120 @@
+package reviewbranch.commands;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Waits for HEAD, a branch or a remote branch to change, via a {@link WatchService} on the git dir, so
+ * {@code review --watch} only rescans when there might be something new.
+ *
+ * A {@link WatchService} isn't recursive, so each directory under {@code refs/heads} and {@code refs/remotes} is
+ * registered on its own (including ones created later, for branches like {@code feature/foo}). In a linked worktree,
+ * HEAD and the rebase state are in its own {@code .git/worktrees/<name>} dir, so that's watched too. Our own
+ * {@code review-branch-*} branches move on every upload, so they're ignored.
+ */
+class RefWatcher implements Closeable {
+
+  private final Path gitDir;
+  private final Path workTreeGitDir;
+  private final long debounceMillis;
+  private final WatchService watcher;
+
+  /**
+   * @param gitDir the (common) git dir, with the refs
+   * @param workTreeGitDir the git dir of the worktree we're watching, with its HEAD; usually the same as {@code gitDir}
+   */
+  RefWatcher(File gitDir, File workTreeGitDir, long debounceMillis) throws IOException {
+    this.gitDir = gitDir.toPath();
+    this.workTreeGitDir = workTreeGitDir.toPath();
+    this.debounceMillis = debounceMillis;
+    watcher = this.gitDir.getFileSystem().newWatchService();
+    // HEAD and packed-refs live directly in the git dirs
+    register(this.gitDir);
+    if (!this.workTreeGitDir.equals(this.gitDir)) {
+      register(this.workTreeGitDir);
+    }
+    for (String refs : new String[] { "refs/heads", "refs/remotes" }) {
+      Path dir = this.gitDir.resolve(refs);
+      Files.createDirectories(dir);
+      try (Stream<Path> dirs = Files.walk(dir)) {
+        for (Path d : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+          register(d);
+        }
+      }
+    }
+  }
+
+  /**
+   * Blocks until a ref has changed, and then until there have been no changes for our debounce period and no rebase
+   * is in progress, so a rebase that moves HEAD through each commit only triggers one rescan.
+   */
+  void awaitChange() throws InterruptedException, IOException {
+    boolean changed = false;
+    while (true) {
+      WatchKey key = changed ? watcher.poll(debounceMillis, TimeUnit.MILLISECONDS) : watcher.take();
+      if (key == null) {
+        if (!isRebasing()) {
+          return;
+        }
+        continue;
+      }
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> e : key.pollEvents()) {
+        if (e.kind() == OVERFLOW) {
+          changed = true;
+          continue;
+        }
+        Path path = dir.resolve((Path) e.context());
+        if (e.kind() == ENTRY_CREATE && !isGitDir(dir) && Files.isDirectory(path)) {
+          register(path);
+        }
+        changed |= isRef(path);
+      }
+      key.reset();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watcher.close();
+  }
+
+  private boolean isRef(Path path) {
+    String name = path.getFileName().toString();
+    if (name.endsWith(".lock")) {
+      return false;
+    }
+    if (isGitDir(path.getParent())) {
+      // other files in the git dir (index, FETCH_HEAD, our own review-branch/ dir, ...) don't change what we'd upload
+      return name.equals("HEAD") || name.equals("packed-refs");
+    }
+    // our worktrees' branches, which we move ourselves
+    return !gitDir.relativize(path).toString().replace(File.separatorChar, '/').startsWith("refs/heads/review-branch-");
+  }
+
+  private boolean isGitDir(Path dir) {
+    return dir.equals(gitDir) || dir.equals(workTreeGitDir);
+  }
+
+  private boolean isRebasing() {
+    return Files.exists(workTreeGitDir.resolve("rebase-merge")) || Files.exists(workTreeGitDir.resolve("rebase-apply"));
+  }
+
+  private void register(Path dir) throws IOException {
+    dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+  }
+
+}
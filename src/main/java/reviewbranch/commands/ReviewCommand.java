@@ -2,16 +2,24 @@ package reviewbranch.commands;
 
 import com.github.rvesse.airline.annotations.Command;
 import com.github.rvesse.airline.annotations.Option;
-import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.lang3.StringUtils;
+import org.jooq.lambda.Seq;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reviewbranch.apis.Git;
+import reviewbranch.apis.Metrics;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
 import reviewbranch.apis.ReviewId;
 
@@ -19,7 +27,6 @@ import reviewbranch.apis.ReviewId;
 public class ReviewCommand extends AbstractCommand {
 
   private static final Logger log = LoggerFactory.getLogger(ReviewCommand.class);
-  private static final Pattern indexRegex = Pattern.compile("\nindex \\w+\\.\\.\\w+ \\d+\n");
   private static final Pattern bugRegex = Pattern.compile("BUG=([\\w\\d-]+)");
 
   @Option(name = { "-r", "--reviewers" }, description = "csv of reviewers (only set on RB creation)")
@@ -37,63 +44,274 @@ public class ReviewCommand extends AbstractCommand {
   @Option(name = { "-m", "--diff-description" }, description = "A description of what changed in this update of the review request.")
   public String diffDescription;
 
+  @Option(name = { "-j", "--jobs" }, description = "upload up to this many RBs at once, each from its own worktree")
+  public int jobs = 1;
+
+  @Option(name = { "--branches" }, description = "csv of local branches to review (instead of the current one), each from its own worktree")
+  public String branches;
+
+  @Option(name = { "--all-local" }, description = "review every local branch other than master (or the --base branch)")
+  public boolean allLocal;
+
+  @Option(name = { "-w", "--watch" }, description = "keep running, and review again whenever HEAD or a branch changes (e.g. after a rebase)")
+  public boolean watch;
+
+  @Option(name = { "--skip-paths" }, description = "csv of globs (e.g. docs/**,*.md); commits that only touch matching paths don't get RBs")
+  public String skipPaths;
+
+  @Option(name = { "--resume" }, description = "continue a review that failed part way through, without redoing the commits it finished")
+  public boolean resume;
+
   @Override
   public void run(Git git, ReviewBoard rb) {
+    review(git, rb, resume);
+    if (!watch) {
+      return;
+    }
+    // commits whose trees are unchanged are skipped via the diff index, so each rescan only uploads what's new
+    try (RefWatcher watcher = new RefWatcher(git.getGitDir(), git.getWorkTreeGitDir(), 500)) {
+      while (true) {
+        log.info("Watching for changes");
+        watcher.awaitChange();
+        try {
+          // pick up wherever a failed rescan left off
+          review(git, rb, true);
+        } catch (RuntimeException e) {
+          // e.g. an RB was down; we'll try again on the next change
+          log.error("Review failed", e);
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void review(Git git, ReviewBoard rb, boolean resume) {
+    Journal journal = Journal.open(git, "review", resume);
+    try {
+      if (branches != null || allLocal) {
+        reviewBranches(git, rb, journal);
+      } else {
+        reviewCurrentBranch(git, rb, journal);
+      }
+    } catch (RuntimeException e) {
+      journal.abort(git);
+      throw e;
+    }
+    journal.finish();
+  }
+
+  private void reviewCurrentBranch(Git git, ReviewBoard rb, Journal journal) {
     String currentBranch = git.getCurrentBranch();
 
     List<String> revs = git.getRevisionsFromOriginMaster();
     log.info("Found revs {}", revs);
 
-    Optional<String> previousRbId = Optional.empty();
-    for (String rev : revs) {
-      // We don't amend commits, so a straight reset each time is fine
-      log.info("Resetting to {}", rev);
-      git.resetHard(rev);
-
-      String message = git.getCurrentCommitMessage();
-      Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(git, message);
-      Optional<String> lastDiffHash = git.getNote("reviewlasthash");
-      String currentDiffHash = stripIndexAndHash(git.getCurrentDiff());
-      if (message != null && message.startsWith("wip:")) {
-        log.info("Skipping commit with prefix wip:");
-        continue;
+    NotesSnapshot reviewIds = git.getNotes("reviewid");
+    NotesSnapshot lastDiffHashes = git.getNotes("reviewlasthash");
+    List<String> excludes = git.getExcludes();
+    DiffIndex diffIndex = DiffIndex.load(git, excludes);
+    PatchIdIndex patchIds = PatchIdIndex.load(git, reviewIds, lastDiffHashes);
+    patchIds.addRevisions(revs);
+    CommitFilter filter = CommitFilter.builtIn(skipPaths, excludes);
+
+    // note changes are buffered, so make sure whatever we've uploaded so far gets recorded, even on failure
+    try {
+      if (jobs > 1) {
+        new ParallelReview(this, git, rb).run(currentBranch, revs, reviewIds, lastDiffHashes, diffIndex, patchIds, filter, journal);
+        return;
       }
 
-      if (rbId.isPresent()) {
-        if (lastDiffHash.isPresent() && lastDiffHash.get().equals(currentDiffHash)) {
-          log.info("Skipped RB: " + rbId.get());
-        } else {
-          if (rbId.get().contains("\n")) {
-            // this is a squashed/fixed commit
-            rbId = rbId.map(id -> StringUtils.substringBefore(id, "\n"));
-          }
-          rb.updateRbForCurrentCommit(this, rbId.get(), previousRbId);
-          log.info("Updated RB: " + rbId.get());
-          git.setNote("reviewid", rbId.get());
-          git.setNote("reviewlasthash", currentDiffHash);
+      // metadata is read by revision, and uploads happen from our own worktree, which we only create once needed
+      // the next commit is read while the current one uploads
+      try (WorkTree.Lazy wt = WorkTree.lazy(() -> WorkTree.open(git, rb, 1));
+          Prefetcher prefetcher = new Prefetcher(git, revs, reviewIds, lastDiffHashes, diffIndex, filter, journal)) {
+        Optional<String> previousRbId = Optional.empty();
+        for (int i = 0; i < revs.size(); i++) {
+          Prefetcher.Rev r = prefetcher.take(i);
+          Optional<String> dependsOn = previousRbId;
+          previousRbId = Metrics.timeRev(r.rev, () -> reviewRev(git, wt, currentBranch, r, dependsOn, reviewIds, lastDiffHashes, diffIndex, patchIds, journal));
         }
-        previousRbId = rbId;
+      }
+    } finally {
+      git.flushNotes();
+      diffIndex.save();
+      patchIds.save(git);
+      logSkipped(filter);
+    }
+  }
+
+  private void reviewBranches(Git git, ReviewBoard rb, Journal journal) {
+    String baseBranch = allLocal ? getBaseBranch(git) : null;
+    List<String> names = allLocal
+      ? Seq.seq(git.getLocalBranches()).filter(b -> !b.equals(baseBranch) && !b.startsWith("review-branch-")).toList()
+      : Arrays.asList(branches.split(","));
+    NotesSnapshot reviewIds = git.getNotes("reviewid");
+    NotesSnapshot lastDiffHashes = git.getNotes("reviewlasthash");
+    List<String> excludes = git.getExcludes();
+    DiffIndex diffIndex = DiffIndex.load(git, excludes);
+    PatchIdIndex patchIds = PatchIdIndex.load(git, reviewIds, lastDiffHashes);
+    CommitFilter filter = CommitFilter.builtIn(skipPaths, excludes);
+    try {
+      new MultiBranchReview(this, git, rb).run(names, reviewIds, lastDiffHashes, diffIndex, patchIds, filter, journal);
+    } finally {
+      git.flushNotes();
+      diffIndex.save();
+      patchIds.save(git);
+      logSkipped(filter);
+    }
+  }
+
+  private static void logSkipped(CommitFilter filter) {
+    if (filter.skippedCount() > 0) {
+      log.info("Filtered out {} commits without diffing them", filter.skippedCount());
+    }
+  }
+
+  /**
+   * Creates or updates {@code rev}'s RB if its diff has changed, checking it out in {@code wt} only if it's uploaded.
+   *
+   * @return the RB that {@code rev}'s child should depend on
+   */
+  Optional<String> reviewRev(//
+      Git git,
+      Supplier<WorkTree> wt,
+      String branch,
+      Prefetcher.Rev r,
+      Optional<String> previousRbId,
+      NotesSnapshot reviewIds,
+      NotesSnapshot lastDiffHashes,
+      DiffIndex diffIndex,
+      PatchIdIndex patchIds,
+      Journal journal) {
+    String rev = r.rev;
+    Optional<String> skipReason = r.skipReason();
+    if (skipReason.isPresent()) {
+      log.info("Skipping {} ({})", rev, skipReason.get());
+      return previousRbId;
+    }
+    String message = r.message();
+    Optional<String> rbId = ReviewId.getFromNoteOrCommitMessage(reviewIds, rev, message);
+    Optional<String> lastDiffHash = lastDiffHashes.get(rev);
+    if (!rbId.isPresent()) {
+      // before creating an RB, make sure this isn't a commit whose notes were lost
+      Optional<String[]> known = patchIds.find(git, rev);
+      if (known.isPresent()) {
+        rbId = Optional.of(known.get()[0]);
+        lastDiffHash = Optional.of(known.get()[1]);
+      }
+    }
+
+    String key = r.key();
+    Optional<String[]> uploaded = journal.get(rev, "uploaded");
+    if (uploaded.isPresent()) {
+      // a failed run got this far, and its notes may not have been written
+      String[] u = uploaded.get();
+      if (u[2].equals(previousRbId.orElse("-"))) {
+        log.info("Skipped RB: " + u[0] + " (uploaded before the last run failed)");
+        git.setNote("reviewid", rev, u[0]);
+        git.setNote("reviewlasthash", rev, u[1]);
+        diffIndex.put(key, u[1], u[0]);
+        return Optional.of(u[0]);
+      }
+      // its depends-on is stale, so update it instead of creating a second RB
+      rbId = Optional.of(u[0]);
+    }
+
+    // if we've uploaded these exact trees before, we don't need to look at the diff
+    if (rbId.isPresent() && diffIndex.isUploaded(key, rbId.get(), lastDiffHash)) {
+      log.info("Skipped RB: " + rbId.get() + " (unchanged trees)");
+      return rbId;
+    }
+
+    String currentDiffHash = r.diffHash(lastDiffHash);
+    if (rbId.isPresent()) {
+      if (lastDiffHash.isPresent() && lastDiffHash.get().equals(currentDiffHash)) {
+        log.info("Skipped RB: " + rbId.get());
+        diffIndex.put(key, currentDiffHash, rbId.get());
       } else {
-        Optional<String> bugId = findBugIdInCommitMessage(message);
-        String newRbId = rb.createNewRbForCurrentCommit(this, currentBranch, previousRbId, bugId);
-        log.info("Created RB: " + newRbId);
-        git.setNote("reviewid", newRbId);
-        git.setNote("reviewlasthash", currentDiffHash);
-        previousRbId = Optional.of(newRbId);
+        if (rbId.get().contains("\n")) {
+          // this is a squashed/fixed commit
+          rbId = rbId.map(id -> StringUtils.substringBefore(id, "\n"));
+        }
+        wt.get().git.resetHard(rev);
+        wt.get().rb.updateRbForCurrentCommit(this, rbId.get(), previousRbId);
+        log.info("Updated RB: " + rbId.get());
+        journal.record(rev, "uploaded", rbId.get(), currentDiffHash, previousRbId.orElse("-"));
+        patchIds.uploaded(rev, rbId.get(), currentDiffHash);
+        git.setNote("reviewid", rev, rbId.get());
+        git.setNote("reviewlasthash", rev, currentDiffHash);
+        diffIndex.put(key, currentDiffHash, rbId.get());
       }
+      return rbId;
+    } else {
+      Optional<String> bugId = findBugIdInCommitMessage(message);
+      wt.get().git.resetHard(rev);
+      String newRbId = wt.get().rb.createNewRbForCurrentCommit(this, branch, previousRbId, bugId);
+      log.info("Created RB: " + newRbId);
+      journal.record(rev, "uploaded", newRbId, currentDiffHash, previousRbId.orElse("-"));
+      patchIds.uploaded(rev, newRbId, currentDiffHash);
+      git.setNote("reviewid", rev, newRbId);
+      git.setNote("reviewlasthash", rev, currentDiffHash);
+      diffIndex.put(key, currentDiffHash, newRbId);
+      return Optional.of(newRbId);
     }
   }
 
-  private static Optional<String> findBugIdInCommitMessage(String message) {
+  static Optional<String> findBugIdInCommitMessage(String message) {
     return Optional.ofNullable(message)
         .map(bugRegex::matcher)
         .filter(Matcher::find)
         .map(m -> m.group(1));
   }
 
-  private static String stripIndexAndHash(String diff) {
-    // the index line includes hashes that will change after rebases
-    diff = indexRegex.matcher(diff).replaceAll("\n");
-    return Hashing.sha1().hashString(diff, Charsets.UTF_8).toString();
+  /** @return whether {@code lastDiffHash} is a legacy hash, so we need those as well as the fingerprint */
+  static boolean needsLegacyHash(Optional<String> lastDiffHash) {
+    return lastDiffHash.isPresent() && !DiffFingerprint.isFingerprint(lastDiffHash);
+  }
+
+  /** @return {@link #hashDiff(Git, String, boolean)}, from the journal if a failed run already computed it */
+  static String[] journaledHashes(Git git, String rev, boolean legacy, Journal journal) {
+    Optional<String[]> hashed = journal.get(rev, "hashed");
+    if (hashed.isPresent() && (!legacy || hashed.get().length > 2)) {
+      return hashed.get();
+    }
+    String[] hashes = hashDiff(git, rev, legacy);
+    journal.record(rev, "hashed", hashes);
+    return hashes;
+  }
+
+  /** @return a legacy hash if it's what {@code lastDiffHash} still is, otherwise the fingerprint */
+  static String chooseHash(String[] hashes, Optional<String> lastDiffHash) {
+    for (int i = 1; i < hashes.length; i++) {
+      if (hashes[i].equals(lastDiffHash.orElse(null))) {
+        return hashes[i];
+      }
+    }
+    return hashes[0];
+  }
+
+  /**
+   * @return {@code rev}'s diff fingerprint, and if {@code legacy} the hashes that older {@code reviewlasthash} notes
+   *         held as well, i.e. its plain SHA-1 (from before {@link DiffFingerprint}) and its
+   *         {@link DiffFingerprint#positionlessVersion} fingerprint, from one pass over it
+   */
+  static String[] hashDiff(Git git, String rev, boolean legacy) {
+    DiffFingerprint fingerprint = new DiffFingerprint();
+    DiffFingerprint positionless = new DiffFingerprint(false);
+    Hasher hasher = Hashing.sha1().newHasher();
+    // the index line includes hashes that will change after rebases; stream through the filter so huge diffs are
+    // never held in memory, re-encoding invalid UTF-8 like hashing the diff as a String did
+    OutputStream sha1 = new Utf8Filter(new IndexLineFilter(Funnels.asOutputStream(hasher)));
+    try (OutputStream out = legacy ? new TeeOutputStream(fingerprint, new TeeOutputStream(positionless, sha1)) : fingerprint) {
+      git.writeDiff(rev, out);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return legacy
+      ? new String[] { fingerprint.fingerprint(), hasher.hash().toString(), positionless.fingerprint() }
+      : new String[] { fingerprint.fingerprint() };
   }
 }
@@ -0,0 +1,38 @@
+package reviewbranch.commands;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Writes everything to two streams, so a diff can be hashed two ways from one {@code git diff}. */
+class TeeOutputStream extends OutputStream {
+
+  private final OutputStream a;
+  private final OutputStream b;
+
+  TeeOutputStream(OutputStream a, OutputStream b) {
+    this.a = a;
+    this.b = b;
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    a.write(c);
+    b.write(c);
+  }
+
+  @Override
+  public void write(byte[] bytes, int off, int len) throws IOException {
+    a.write(bytes, off, len);
+    b.write(bytes, off, len);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      a.close();
+    } finally {
+      b.close();
+    }
+  }
+
+}
@@ -0,0 +1,75 @@
+package reviewbranch.commands;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Re-encodes a UTF-8 stream as it's streamed through, replacing invalid bytes (e.g. a Latin-1 file's) with U+FFFD,
+ * just like decoding the whole thing to a {@link String} and back did, so streamed hashes match the ones taken of
+ * {@link String}s before.
+ *
+ * Valid UTF-8 comes out unchanged.
+ */
+class Utf8Filter extends FilterOutputStream {
+
+  private final CharsetDecoder decoder = StandardCharsets.UTF_8
+    .newDecoder()
+    .onMalformedInput(CodingErrorAction.REPLACE)
+    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  // bytes not decoded yet, i.e. the start of a character that continues in the next write
+  private final ByteBuffer bytes = ByteBuffer.allocate(8192);
+  private final CharBuffer chars = CharBuffer.allocate(8192);
+
+  Utf8Filter(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int n = Math.min(len, bytes.remaining());
+      bytes.put(b, off, n);
+      off += n;
+      len -= n;
+      decode(false);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    decode(true);
+    while (decoder.flush(chars).isOverflow()) {
+      drain();
+    }
+    drain();
+    super.close();
+  }
+
+  private void decode(boolean endOfInput) throws IOException {
+    bytes.flip();
+    for (CoderResult r = decoder.decode(bytes, chars, endOfInput); r.isOverflow(); r = decoder.decode(bytes, chars, endOfInput)) {
+      drain();
+    }
+    drain();
+    bytes.compact();
+  }
+
+  private void drain() throws IOException {
+    chars.flip();
+    out.write(chars.toString().getBytes(StandardCharsets.UTF_8));
+    chars.clear();
+  }
+
+}
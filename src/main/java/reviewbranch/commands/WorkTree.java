@@ -0,0 +1,76 @@
+package reviewbranch.commands;
+
+import java.io.File;
+
+import com.google.common.base.Supplier;
+
+import reviewbranch.apis.Git;
+import reviewbranch.apis.ReviewBoard;
+
+/**
+ * A reusable worktree under {@code .git/review-branch/}, on its own branch, where commands check out the commits they
+ * upload or rewrite, so the user's checkout (and its mtimes) is never touched.
+ *
+ * The worktree is sparse, with just the top-level files (e.g. {@code .reviewboardrc}) checked out, since uploads only
+ * need a HEAD and not the files themselves.
+ *
+ * Its {@link Git} and {@link ReviewBoard} keep their own {@code git cat-file} processes, so commands close it when
+ * they're done with it.
+ */
+class WorkTree implements AutoCloseable {
+
+  final String branch;
+  final Git git;
+  final ReviewBoard rb;
+
+  /** @return the {@code i}th worktree, i.e. {@code wt}, {@code wt2}, ..., creating it if needed */
+  static WorkTree open(Git git, ReviewBoard rb, int i) {
+    String name = i == 1 ? "wt" : "wt" + i;
+    return new WorkTree(git, rb, new File(git.getGitDir(), "review-branch/" + name), "review-branch-" + name);
+  }
+
+  /** @return a supplier that only opens a worktree with {@code open} once it's first needed, and closes it (if it did) */
+  static Lazy lazy(Supplier<WorkTree> open) {
+    return new Lazy(open);
+  }
+
+  private WorkTree(Git git, ReviewBoard rb, File dir, String branch) {
+    this.branch = branch;
+    this.git = git.addWorkTree(dir, branch);
+    this.rb = rb.inWorkTree(dir);
+  }
+
+  @Override
+  public void close() {
+    try {
+      rb.close();
+    } finally {
+      git.close();
+    }
+  }
+
+  static class Lazy implements Supplier<WorkTree>, AutoCloseable {
+    private final Supplier<WorkTree> open;
+    private WorkTree wt;
+
+    private Lazy(Supplier<WorkTree> open) {
+      this.open = open;
+    }
+
+    @Override
+    public synchronized WorkTree get() {
+      if (wt == null) {
+        wt = open.get();
+      }
+      return wt;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (wt != null) {
+        wt.close();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,126 @@
+package reviewbranch.apis;
+
+import static java.util.Optional.empty;
+import static java.util.Optional.of;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JGitImplTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+  private final Git fallback = mock(Git.class);
+  private org.eclipse.jgit.api.Git jgit;
+  private RevCommit commitA;
+  private RevCommit commitB;
+  private Git git;
+
+  @Before
+  public void before() throws GitAPIException, IOException {
+    // a repo with two commits on top of origin/master, built without forking git
+    jgit = org.eclipse.jgit.api.Git.init().setDirectory(folder.getRoot()).call();
+    RevCommit base = commit("base");
+    RefUpdate originMaster = jgit.getRepository().updateRef("refs/remotes/origin/master");
+    originMaster.setNewObjectId(base);
+    originMaster.update();
+    commitA = commit("commit a\n\nRB=1");
+    commitB = commit("commit b");
+    git = new JGitImpl(jgit.getRepository(), fallback);
+  }
+
+  @After
+  public void after() {
+    // nothing here should need real git
+    verifyNoMoreInteractions(fallback);
+    jgit.close();
+  }
+
+  @Test
+  public void readRevisionsAndMessages() {
+    List<String> revs = git.getRevisionsFromOriginMaster();
+    assertThat(revs, contains(commitA.name(), commitB.name()));
+    assertThat(git.getCommitMessage(revs.get(0)), is("commit a\n\nRB=1"));
+    assertThat(git.getCommitMessage("HEAD"), is("commit b"));
+    assertThat(git.getCurrentBranch(), is("master"));
+    assertThat(git.getTreeId("HEAD"), is(commitB.getTree().name()));
+  }
+
+  @Test
+  public void ignoreCachedRevisionsThatWereAbbreviated() throws IOException {
+    // given an older version cached this rev list with abbreviated ids, which may have become ambiguous since
+    File cache = new File(jgit.getRepository().getDirectory(), "review-branch/revisions");
+    cache.getParentFile().mkdirs();
+    String key = jgit.getRepository().resolve("origin/master").name() + " " + commitB.name();
+    Files.write(cache.toPath(), Arrays.asList(key + " " + commitA.abbreviate(7).name() + " " + commitB.abbreviate(7).name()));
+    // then we list it again, and cache the full ids
+    assertThat(git.getRevisionsFromOriginMaster(), contains(commitA.name(), commitB.name()));
+    assertThat(Files.readAllLines(cache.toPath()), contains(key + " " + commitA.name() + " " + commitB.name()));
+  }
+
+  @Test
+  public void onlyWriteTheRevisionCacheWhenAListIsAdded() throws IOException {
+    // given we listed the revisions once
+    git.getRevisionsFromOriginMaster();
+    File cache = new File(jgit.getRepository().getDirectory(), "review-branch/revisions");
+    cache.setLastModified(1000);
+    // when another run lists them again
+    assertThat(new JGitImpl(jgit.getRepository(), fallback).getRevisionsFromOriginMaster(), contains(commitA.name(), commitB.name()));
+    // then the cache isn't rewritten
+    assertThat(cache.lastModified(), is(1000L));
+  }
+
+  @Test
+  public void onlyCommitsOnTheBaseAreMerged() {
+    assertThat(git.isMerged("origin/master"), is(true));
+    assertThat(git.isMerged(commitA.name()), is(false));
+    assertThat(git.isMerged("0123456789012345678901234567890123456789"), is(false));
+  }
+
+  @Test
+  public void mergeBaseIsWhereTheBranchForked() throws IOException {
+    String base = jgit.getRepository().resolve("origin/master").name();
+    assertThat(git.getMergeBase("HEAD"), is(base));
+    assertThat(git.getMergeBase(commitA.name()), is(base));
+  }
+
+  @Test
+  public void writeAndReadNotes() {
+    // given a buffered note
+    git.setNote("reviewid", "HEAD~1", "1");
+    assertThat(git.getNote("reviewid", "HEAD~1"), is(of("1")));
+    // when it's flushed, and another note is added on top
+    git.flushNotes();
+    git.setNote("reviewid", "HEAD", "2");
+    git.flushNotes();
+    // then both are in the notes ref
+    Git fresh = new JGitImpl(jgit.getRepository(), fallback);
+    assertThat(fresh.getNote("reviewid", commitA.name()), is(of("1")));
+    assertThat(fresh.getNote("reviewid", commitB.name()), is(of("2")));
+    assertThat(fresh.getNote("reviewlasthash", commitB.name()), is(empty()));
+    assertThat(fresh.getNotes("reviewid").get(commitA.name()), is(of("1")));
+    assertThat(fresh.getNotes("reviewid").size(), is(2));
+  }
+
+  private RevCommit commit(String message) throws GitAPIException {
+    return jgit.commit().setMessage(message).setAllowEmpty(true).setAuthor("bob", "bob@example.com").setCommitter("bob", "bob@example.com").call();
+  }
+
+}
@@ -0,0 +1,75 @@
+package reviewbranch.apis;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class MetricsTest {
+
+  private final Git target = mock(Git.class);
+  private final Git git = Metrics.wrap(Git.class, target);
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void before() {
+    Metrics.reset();
+  }
+
+  @Test
+  public void recordsCallsAndTheirSpawns() throws IOException {
+    // given a call that forks git and reads its output
+    when(target.getCurrentBranch()).thenAnswer(i -> {
+      Metrics.recordSpawn();
+      Metrics.recordBytesRead(8);
+      return "branch1";
+    });
+    // when it's called twice, for a rev
+    Metrics.timeRev("commitA", () -> {
+      assertThat(git.getCurrentBranch(), is("branch1"));
+      assertThat(git.getCurrentBranch(), is("branch1"));
+    });
+    // then we have its stats
+    assertThat(Metrics.summary(), containsString("Git.getCurrentBranch"));
+    assertThat(Metrics.summary(), containsString("commitA"));
+    File out = folder.newFile("metrics.json");
+    Metrics.writeJson(out);
+    JsonObject json = JsonParser.parseString(new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8)).getAsJsonObject();
+    JsonObject stat = json.getAsJsonObject("methods").getAsJsonObject("Git.getCurrentBranch");
+    assertThat(stat.get("calls").getAsInt(), is(2));
+    assertThat(stat.get("spawns").getAsInt(), is(2));
+    assertThat(stat.get("bytesRead").getAsInt(), is(16));
+    assertThat(json.getAsJsonObject("revisions").has("commitA"), is(true));
+  }
+
+  @Test
+  public void wrapsWorkTrees() {
+    // given a worktree-bound Git
+    Git wt = mock(Git.class);
+    when(target.addWorkTree(new File("wt1"), "branch1")).thenReturn(wt);
+    // when its calls are made through the wrapper
+    Git wrapped = git.addWorkTree(new File("wt1"), "branch1");
+    wrapped.resetHard("commitA");
+    // then they are recorded too
+    assertThat(wrapped, not(sameInstance(wt)));
+    assertThat(Metrics.summary(), containsString("Git.resetHard"));
+  }
+
+}
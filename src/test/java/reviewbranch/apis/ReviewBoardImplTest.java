@@ -0,0 +1,33 @@
+package reviewbranch.apis;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class ReviewBoardImplTest {
+
+  @Test
+  public void passExcludesToRbtAsGlobs() {
+    ReviewBoardImpl rb = new ReviewBoardImpl(null, Arrays.asList("vendor/", "package-lock.json", "*.min.js", ":/gen/", ":(top)docs"));
+    assertThat(
+      rb.rbtFlags(" --depends-on=1"),
+      is(" --depends-on=1 -X vendor/* -X package-lock.json -X package-lock.json/* -X *.min.js -X gen/* -X docs -X docs/*"));
+  }
+
+  @Test
+  public void skipExcludesThatAreNotGlobs() {
+    // magic and whitespace can't be passed on, so those files are still uploaded
+    ReviewBoardImpl rb = new ReviewBoardImpl(null, Arrays.asList(":(exclude)a", ":(icase)b", "c d", "e"));
+    assertThat(rb.rbtFlags(""), is(" -X e -X e/*"));
+  }
+
+  @Test
+  public void noFlagsWithoutExcludes() {
+    assertThat(new ReviewBoardImpl(null, Collections.emptyList()).rbtFlags(""), is(""));
+  }
+
+}
@@ -0,0 +1,220 @@
+package reviewbranch.apis;
+
+import static java.util.Optional.empty;
+import static java.util.Optional.of;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpServer;
+
+import reviewbranch.commands.ReviewCommand;
+
+public class ReviewBoardRestImplTest {
+
+  private final Git git = mock(Git.class);
+  private final ReviewCommand args = new ReviewCommand();
+  private final List<String> requests = new ArrayList<>();
+  private final List<byte[]> bodies = new ArrayList<>();
+  private final Map<String, String> responses = new HashMap<>();
+  private volatile long responseDelayMillis = 0;
+  private HttpServer server;
+  private ReviewBoard rb;
+
+  @Before
+  public void before() throws IOException {
+    // a stub RB server that records each request and replies with canned JSON
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", exchange -> {
+      byte[] body;
+      try (InputStream in = exchange.getRequestBody()) {
+        body = ByteStreams.toByteArray(in);
+      }
+      String request = exchange.getRequestMethod() + " " + exchange.getRequestURI();
+      requests.add(request + " " + exchange.getRequestHeaders().getFirst("Authorization") + "\n" + new String(body, StandardCharsets.UTF_8));
+      bodies.add(body);
+      try {
+        Thread.sleep(responseDelayMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      byte[] response = responses.getOrDefault(request, "{\"stat\": \"ok\"}").getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(response);
+      }
+    });
+    server.start();
+    rb = new ReviewBoardRestImpl("http://127.0.0.1:" + server.getAddress().getPort() + "/", "repo1", "token1", git);
+    when(git.getCommitMessage("HEAD")).thenReturn("Summary.\n\nSome description.");
+    // HEAD is the first commit on its branch
+    when(git.getMergeBase("HEAD")).thenReturn("base1");
+    when(git.isMerged("HEAD^")).thenReturn(true);
+    givenReviewDiff("HEAD^", "HEAD", "diff --git a/A.java b/A.java\n".getBytes(StandardCharsets.UTF_8));
+  }
+
+  @After
+  public void after() {
+    server.stop(0);
+  }
+
+  @Test
+  public void createNewRb() {
+    // given the server creates RB 10
+    responses.put("POST /api/review-requests/", "{\"stat\": \"ok\", \"review_request\": {\"id\": 10}}");
+    args.reviewers = "bob";
+    // when we create an RB that depends on RB 9
+    String rbId = rb.createNewRbForCurrentCommit(args, "branch1", of("9"), of("FOO-1"));
+    // then we created it, uploaded the diff, and filled in the draft
+    assertThat(rbId, is("10"));
+    assertThat(requests.size(), is(3));
+    assertThat(requests.get(0), is("POST /api/review-requests/ token token1\nrepository=repo1"));
+    assertThat(requests.get(1), containsString("POST /api/review-requests/10/diffs/"));
+    assertThat(requests.get(1), containsString("diff --git a/A.java b/A.java"));
+    assertThat(
+      requests.get(2),
+      is("PUT /api/review-requests/10/draft/ token token1\n"
+        + "summary=Summary.&description=Some+description.&branch=branch1&target_people=bob&bugs_closed=FOO-1&depends_on=9"));
+  }
+
+  @Test
+  public void updateRb() {
+    // when we update an RB
+    args.diffDescription = "Fixed.";
+    args.publish = true;
+    rb.updateRbForCurrentCommit(args, "10", empty());
+    // then we uploaded the diff and published the draft
+    assertThat(requests.size(), is(2));
+    assertThat(requests.get(0), containsString("POST /api/review-requests/10/diffs/"));
+    assertThat(requests.get(1), is("PUT /api/review-requests/10/draft/ token token1\nchangedescription=Fixed.&public=1"));
+  }
+
+  @Test
+  public void uploadTheFirstCommitWithoutAParentDiff() {
+    rb.updateRbForCurrentCommit(args, "10", empty());
+    assertThat(requests.get(0), containsString("name=\"base_commit_id\"\r\n\r\nbase1\r\n"));
+    assertThat(requests.get(0), not(containsString("parent_diff_path")));
+  }
+
+  @Test
+  public void uploadALaterCommitOfAStackWithAParentDiff() {
+    // given HEAD^ is also unpushed, so the server doesn't have its blobs
+    when(git.isMerged("HEAD^")).thenReturn(false);
+    givenReviewDiff("base1", "HEAD^", "diff --git a/B.java b/B.java\n".getBytes(StandardCharsets.UTF_8));
+    // when we upload HEAD
+    rb.updateRbForCurrentCommit(args, "10", empty());
+    // then base1..HEAD^ goes up as the parent diff, and HEAD^..HEAD as the diff itself
+    String boundary = requests.get(0).substring(requests.get(0).indexOf("\n") + 1, requests.get(0).indexOf("\r\n"));
+    assertThat(
+      requests.get(0),
+      containsString("\n"
+        + boundary
+        + "\r\nContent-Disposition: form-data; name=\"base_commit_id\"\r\n\r\nbase1\r\n"
+        + boundary
+        + "\r\nContent-Disposition: form-data; name=\"path\"; filename=\"diff\"\r\nContent-Type: text/x-patch\r\n\r\n"
+        + "diff --git a/A.java b/A.java\n\r\n"
+        + boundary
+        + "\r\nContent-Disposition: form-data; name=\"parent_diff_path\"; filename=\"parent_diff\"\r\nContent-Type: text/x-patch\r\n\r\n"
+        + "diff --git a/B.java b/B.java\n\r\n"
+        + boundary
+        + "--\r\n"));
+  }
+
+  @Test
+  public void uploadTheDiffByteForByte() {
+    // given a latin-1 file, whose bytes aren't valid UTF-8, and git's trailing newline
+    byte[] diff = "diff --git a/A.txt b/A.txt\n-caf\u00e9\n+na\u00efve\n".getBytes(StandardCharsets.ISO_8859_1);
+    givenReviewDiff("HEAD^", "HEAD", diff);
+    rb.updateRbForCurrentCommit(args, "10", empty());
+    // then the body has the diff exactly as git wrote it
+    assertThat(indexOf(bodies.get(0), diff) >= 0, is(true));
+  }
+
+  @Test
+  public void updateDependsOnWithoutUploadingTheDiff() {
+    rb.updateDependsOnForCurrentCommit(args, "10", "9");
+    assertThat(requests.size(), is(1));
+    assertThat(requests.get(0), is("PUT /api/review-requests/10/draft/ token token1\ndepends_on=9"));
+  }
+
+  @Test
+  public void dcommitStampsApprovers() {
+    // given two reviewers, one of whom gave a ship it
+    responses.put(
+      "GET /api/review-requests/10/reviews/?max-results=200",
+      "{\"stat\": \"ok\", \"reviews\": ["
+        + "{\"ship_it\": false, \"links\": {\"user\": {\"title\": \"fred\"}}},"
+        + "{\"ship_it\": true, \"links\": {\"user\": {\"title\": \"bob\"}}}]}");
+    // and a commit that was stamped before the ship it
+    when(git.getCommitMessage("commitA")).thenReturn("Summary.\n\nSome description.\n\nRB=10\nA=");
+    // when we dcommit
+    String message = rb.getDcommitMessage("10", "commitA");
+    // then we restamp the commit's message
+    assertThat(message, is("Summary.\n\nSome description.\n\nRB=10\nA=bob"));
+  }
+
+  @Test
+  public void isApprovedWithAShipIt() {
+    responses.put("GET /api/review-requests/10/", "{\"stat\": \"ok\", \"review_request\": {\"ship_it_count\": 1}}");
+    responses.put("GET /api/review-requests/11/", "{\"stat\": \"ok\", \"review_request\": {\"ship_it_count\": 0}}");
+    assertThat(rb.isApproved("10"), is(true));
+    assertThat(rb.isApproved("11"), is(false));
+  }
+
+  @Test
+  public void timeOutASlowServer() {
+    // given the server takes longer to answer than our timeout
+    responseDelayMillis = 2000;
+    ReviewBoard rb = new ReviewBoardRestImpl("http://127.0.0.1:" + server.getAddress().getPort(), "repo1", "token1", git, 100);
+    // then the request gives up instead of waiting for it
+    try {
+      rb.isApproved("10");
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getCause(), is(instanceOf(SocketTimeoutException.class)));
+    }
+  }
+
+  private void givenReviewDiff(String from, String to, byte[] diff) {
+    doAnswer(i -> {
+      i.<OutputStream> getArgument(2).write(diff);
+      return null;
+    }).when(git).writeReviewDiff(eq(from), eq(to), any(OutputStream.class));
+  }
+
+  private static int indexOf(byte[] bytes, byte[] part) {
+    for (int i = 0; i + part.length <= bytes.length; i++) {
+      if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+}
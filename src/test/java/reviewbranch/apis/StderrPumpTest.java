@@ -0,0 +1,37 @@
+package reviewbranch.apis;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class StderrPumpTest {
+
+  private final PrintStream originalErr = System.err;
+
+  @After
+  public void after() {
+    System.setErr(originalErr);
+  }
+
+  @Test
+  public void copyStderrToTheCurrentSystemErr() throws IOException, InterruptedException {
+    // given System.err has been pointed somewhere else, as the daemon does for each client
+    ByteArrayOutputStream client = new ByteArrayOutputStream();
+    System.setErr(new PrintStream(client, true, "UTF-8"));
+    // when a process writes to its stderr
+    Process p = new ProcessBuilder("sh", "-c", "echo 'fatal: bad revision' >&2").start();
+    StderrPump pump = StderrPump.start(p);
+    p.waitFor();
+    pump.await();
+    // then it ends up there, rather than on the JVM's original stderr
+    assertThat(new String(client.toByteArray(), StandardCharsets.UTF_8), is("fatal: bad revision\n"));
+  }
+
+}
@@ -0,0 +1,56 @@
+package reviewbranch.commands;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CommitFilterTest {
+
+  @Test
+  public void countEachSkippedCommitOnce() {
+    // given two rules that both skip wip commits
+    AtomicInteger calls = new AtomicInteger();
+    CommitFilter filter = new CommitFilter(Arrays.asList( //
+      c -> {
+        calls.incrementAndGet();
+        return c.message().startsWith("wip:") ? Optional.of("wip") : Optional.empty();
+      },
+      c -> c.message().contains("wip") ? Optional.of("also wip") : Optional.empty()));
+    // when one wip commit is asked about twice, e.g. by the prefetch and then the review, through separate objects
+    assertThat(filter.skip(commit("a", "wip: a")), is(Optional.of("wip")));
+    assertThat(filter.skip(commit("a", "wip: a")), is(Optional.of("wip")));
+    // and a kept commit is asked about twice too
+    assertThat(filter.skip(commit("b", "b")), is(Optional.empty()));
+    assertThat(filter.skip(commit("b", "b")), is(Optional.empty()));
+    // then only the wip commit is counted, once, and each commit went through the rules once
+    assertThat(filter.skippedCount(), is(1));
+    assertThat(calls.get(), is(2));
+  }
+
+  private static CommitFilter.Commit commit(String rev, String message) {
+    return new CommitFilter.Commit() {
+      @Override
+      public String rev() {
+        return rev;
+      }
+
+      @Override
+      public String message() {
+        return message;
+      }
+
+      @Override
+      public Map<String, Long> changedPaths() {
+        return Collections.emptyMap();
+      }
+    };
+  }
+
+}
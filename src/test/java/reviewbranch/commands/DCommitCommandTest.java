@@ -1,55 +1,161 @@
 package reviewbranch.commands;
 
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
-import java.util.Optional;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.jooq.lambda.Seq;
 import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
 
-@SuppressWarnings("unchecked")
 public class DCommitCommandTest {
 
   private final Git git = mock(Git.class);
   private final ReviewBoard rb = mock(ReviewBoard.class);
   private final ReviewCommand args = new ReviewCommand();
+  // messages are stamped in a worktree
+  private final Git wtGit = mock(Git.class);
+  private final ReviewBoard wtRb = mock(ReviewBoard.class);
+  @Rule
+  public final TemporaryFolder tmp = new TemporaryFolder();
+  private File gitDir;
+  private File wtDir;
+
+  @Before
+  public void before() {
+    gitDir = tmp.getRoot();
+    wtDir = new File(gitDir, "review-branch/wt");
+    when(git.getGitDir()).thenReturn(gitDir);
+    when(git.addWorkTree(wtDir, "review-branch-wt")).thenReturn(wtGit);
+    when(rb.inWorkTree(wtDir)).thenReturn(wtRb);
+  }
 
   @After
   public void after() {
-    verifyNoMoreInteractions(git, rb);
+    verifyNoMoreInteractions(git, rb, wtGit, wtRb);
   }
 
   @Test
   public void dcommitTwoCommits() {
     // given we want to dcommit two new commits
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
-    when(git.getNote("reviewid")).thenReturn(Optional.of("1"), Optional.of("2"));
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.of("hash"));
-    when(git.getCurrentCommit()).thenReturn("commitA2");
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1", "commitB", "2"));
+    when(git.getNotes("reviewlasthash")).thenReturn(notes("commitB", "hash"));
+    when(git.getCommitMessage("commitA")).thenReturn("a");
+    when(git.getCommitMessage("commitB")).thenReturn("b");
+    when(wtRb.getDcommitMessage("1", "commitA")).thenReturn("a\n\nRB=1");
+    when(wtRb.getDcommitMessage("2", "commitB")).thenReturn("b\n\nRB=2");
+    when(git.rewriteCommit("commitA", "commitA^", "a\n\nRB=1")).thenReturn("commitA2");
+    when(git.rewriteCommit("commitB", "commitA2", "b\n\nRB=2")).thenReturn("commitB2");
+    // when ran
+    new DCommitCommand().run(git, rb);
+    // then we stamp each commit's message from the worktree
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    // (for the journal and the worktree)
+    verify(git, times(2)).getGitDir();
+    verify(git).addWorkTree(wtDir, "review-branch-wt");
+    verify(rb).inWorkTree(wtDir);
+    verify(wtGit).close();
+    verify(wtRb).close();
+    verify(wtRb).getDcommitMessage("1", "commitA");
+    verify(wtRb).getDcommitMessage("2", "commitB");
+    // and write the new chain without checking anything out
+    verify(git).rewriteCommit("commitA", "commitA^", "a\n\nRB=1");
+    verify(git).rewriteCommit("commitB", "commitA2", "b\n\nRB=2");
+    // and copy the notes over
+    verify(git).setNote("reviewid", "commitA2", "1");
+    verify(git).setNote("reviewid", "commitB2", "2");
+    verify(git).setNote("reviewlasthash", "commitB2", "hash");
+    verify(git).flushNotes();
+    // and then move the user's branch once
+    verify(git).updateHead("commitB2", "commitB");
+  }
+
+  @Test
+  public void keepAlreadyStampedCommits() {
+    // given the first commit was already stamped, and the second has no RB
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1"));
+    when(git.getNotes("reviewlasthash")).thenReturn(notes());
+    when(git.getCommitMessage("commitA")).thenReturn("a\n\nRB=1");
+    when(git.getCommitMessage("commitB")).thenReturn("b");
+    when(wtRb.getDcommitMessage("1", "commitA")).thenReturn("a\n\nRB=1");
     // when ran
     new DCommitCommand().run(git, rb);
-    // then we dcommit each commit
+    // then nothing is rewritten
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    // (for the journal and the worktree)
+    verify(git, times(2)).getGitDir();
+    verify(git).addWorkTree(wtDir, "review-branch-wt");
+    verify(rb).inWorkTree(wtDir);
+    verify(wtGit).close();
+    verify(wtRb).close();
+    verify(wtRb).getDcommitMessage("1", "commitA");
+    verify(git).flushNotes();
+  }
+
+  @Test
+  public void resumeFromTheLastStampedCommit() throws IOException {
+    // given a run stamped commitA, and then failed asking for commitB's message
+    File journal = new File(tmp.newFolder("review-branch"), "dcommit.journal");
+    Files.write(journal.toPath(), Arrays.asList("commitA stamped commitA2"), StandardCharsets.UTF_8);
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1", "commitB", "2"));
+    when(git.getNotes("reviewlasthash")).thenReturn(notes());
+    when(git.getCommitMessage("commitA")).thenReturn("a");
+    when(git.getCommitMessage("commitB")).thenReturn("b");
+    when(wtRb.getDcommitMessage("2", "commitB")).thenReturn("b\n\nRB=2");
+    when(git.rewriteCommit("commitB", "commitA2", "b\n\nRB=2")).thenReturn("commitB2");
+    // when resumed
+    DCommitCommand command = new DCommitCommand();
+    command.resume = true;
+    command.run(git, rb);
+    // then we reuse commitA's stamped commit
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getCurrentCommit();
-    verify(git).getCurrentCommitMessage();
-    verify(git).resetHard("commitB");
-    verify(git).resetHard("commitA2");
-    verify(git).cherryPick("commitB");
-    verify(git, atLeast(3)).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).setNote("reviewid", "2");
-    verify(git).setNote("reviewlasthash", "hash");
-    verify(rb).dcommit("1");
-    verify(rb).dcommit("2");
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getCommitMessage("commitA");
+    verify(git).setNote("reviewid", "commitA2", "1");
+    // and only stamp commitB
+    verify(git).getCommitMessage("commitB");
+    verify(git, times(2)).getGitDir();
+    verify(git).addWorkTree(wtDir, "review-branch-wt");
+    verify(rb).inWorkTree(wtDir);
+    verify(wtGit).close();
+    verify(wtRb).close();
+    verify(wtRb).getDcommitMessage("2", "commitB");
+    verify(git).rewriteCommit("commitB", "commitA2", "b\n\nRB=2");
+    verify(git).setNote("reviewid", "commitB2", "2");
+    verify(git).flushNotes();
+    verify(git).updateHead("commitB2", "commitB");
+    assertFalse(journal.exists());
   }
 
   @Test
@@ -63,4 +169,12 @@ public class DCommitCommandTest {
     verify(git).addMultipleValueConfig("notes.rewriteRef", "refs/notes/reviewlasthash");
   }
 
+  private static NotesSnapshot notes(String... commitsAndNotes) {
+    Map<String, String> notes = new HashMap<>();
+    for (int i = 0; i < commitsAndNotes.length; i += 2) {
+      notes.put(commitsAndNotes[i], commitsAndNotes[i + 1]);
+    }
+    return new NotesSnapshot(notes);
+  }
+
 }
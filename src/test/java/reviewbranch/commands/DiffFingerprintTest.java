@@ -0,0 +1,101 @@
+package reviewbranch.commands;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Optional;
+
+import org.junit.Test;
+
+public class DiffFingerprintTest {
+
+  private static final String diff = "diff --git a/A.java b/A.java\nindex 226fa5b..bd372b0 100644\n--- a/A.java\n+++ b/A.java\n"
+    + "@@ -3 +3,2 @@ class A {\n-  int a;\n+  int a = 1;\n+  int b;\n"
+    + "@@ -10,0 +12 @@ class A {\n+  // done\n";
+
+  @Test
+  public void isVersioned() throws IOException {
+    assertThat(fingerprint(diff), startsWith("v3:"));
+    assertThat(positionless(diff), startsWith("v2:"));
+  }
+
+  @Test
+  public void ignoresIndexLinesAndFunctionContext() throws IOException {
+    String rebased = diff.replace("226fa5b..bd372b0", "1111111..2222222").replace("@@ -3 +3,2 @@ class A {", "@@ -3 +3,2 @@ class Foo {");
+    assertThat(fingerprint(rebased), is(fingerprint(diff)));
+  }
+
+  @Test
+  public void changesWhenABlockMoves() throws IOException {
+    // the same lines, added further down the file
+    assertThat(fingerprint(diff.replace("@@ -10,0 +12 @@", "@@ -20,0 +22 @@")), is(not(fingerprint(diff))));
+    // or the same lines, swapped between hunks
+    String swapped = "diff --git a/A.java b/A.java\n--- a/A.java\n+++ b/A.java\n";
+    assertThat(
+      fingerprint(swapped + "@@ -1,0 +2 @@\n+a\n@@ -5,0 +7 @@\n+b\n"),
+      is(not(fingerprint(swapped + "@@ -1,0 +2 @@\n+b\n@@ -5,0 +7 @@\n+a\n"))));
+  }
+
+  @Test
+  public void positionlessIgnoresHunkPositions() throws IOException {
+    String rebased = diff.replace("@@ -3 +3,2 @@ class A {", "@@ -13 +13,2 @@ class Foo {").replace("@@ -10,0 +12 @@", "@@ -20,0 +22 @@");
+    assertThat(positionless(rebased), is(positionless(diff)));
+  }
+
+  @Test
+  public void ignoresTheTrailingNewline() throws IOException {
+    assertThat(fingerprint(diff.substring(0, diff.length() - 1)), is(fingerprint(diff)));
+  }
+
+  @Test
+  public void changesWithTheContent() throws IOException {
+    assertThat(fingerprint(diff.replace("int b;", "int c;")), is(not(fingerprint(diff))));
+    assertThat(fingerprint(diff.replace("b/A.java", "b/B.java")), is(not(fingerprint(diff))));
+  }
+
+  @Test
+  public void changesWithTheHunkBoundaries() throws IOException {
+    // the same lines, but split into hunks differently
+    assertThat(fingerprint(diff.replace("+  int b;\n", "@@ -4,0 +5 @@\n+  int b;\n")), is(not(fingerprint(diff))));
+  }
+
+  @Test
+  public void handlesLinesSplitAcrossWrites() throws IOException {
+    DiffFingerprint fingerprint = new DiffFingerprint();
+    try (OutputStream out = fingerprint) {
+      for (int i = 0; i < diff.length(); i += 5) {
+        out.write(diff.substring(i, Math.min(i + 5, diff.length())).getBytes(UTF_8));
+      }
+    }
+    assertThat(fingerprint.fingerprint(), is(fingerprint(diff)));
+  }
+
+  @Test
+  public void recognizesFingerprints() {
+    assertThat(DiffFingerprint.isFingerprint(Optional.of("v3:abc")), is(true));
+    // an older fingerprint, which we only compare with
+    assertThat(DiffFingerprint.isFingerprint(Optional.of("v2:abc")), is(false));
+    assertThat(DiffFingerprint.isFingerprint(Optional.of("da39a3ee5e6b4b0d3255bfef95601890afd80709")), is(false));
+  }
+
+  private static String fingerprint(String diff) throws IOException {
+    return fingerprint(diff, new DiffFingerprint());
+  }
+
+  private static String positionless(String diff) throws IOException {
+    return fingerprint(diff, new DiffFingerprint(false));
+  }
+
+  private static String fingerprint(String diff, DiffFingerprint fingerprint) throws IOException {
+    try (OutputStream out = fingerprint) {
+      out.write(diff.getBytes(UTF_8));
+    }
+    return fingerprint.fingerprint();
+  }
+
+}
@@ -0,0 +1,41 @@
+package reviewbranch.commands;
+
+import static java.util.Optional.of;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DiffIndexTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void keepOnlyTheMostRecentlyPutEntries() throws IOException {
+    // given an index that holds two entries
+    File file = new File(folder.getRoot(), "diff-index");
+    DiffIndex index = new DiffIndex(file, Collections.emptyList(), 2);
+    index.put("a..b", "hash1", "1");
+    index.put("c..d", "hash2", "2");
+    // when a's entry is put again (e.g. it was unchanged), and then a third commit is uploaded
+    index.put("a..b", "hash1", "1");
+    index.put("e..f", "hash3", "3");
+    index.save();
+    // then c's entry, which was put least recently, is dropped
+    assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8), contains("a..b hash1 1", "e..f hash3 3"));
+    DiffIndex reloaded = new DiffIndex(file, Collections.emptyList(), 2);
+    assertThat(reloaded.isUploaded("a..b", "1", of("hash1")), is(true));
+    assertThat(reloaded.isUploaded("c..d", "2", of("hash2")), is(false));
+  }
+
+}
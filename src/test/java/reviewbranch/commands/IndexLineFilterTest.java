@@ -0,0 +1,107 @@
+package reviewbranch.commands;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.apache.commons.lang3.StringUtils.chomp;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+import reviewbranch.apis.Git;
+
+public class IndexLineFilterTest {
+
+  @Test
+  public void dropsIndexLines() throws IOException {
+    assertThat(
+      filter("diff --git a/A.java b/A.java\nindex 226fa5b..bd372b0 100644\n--- a/A.java\n+++ b/A.java\n"),
+      is("diff --git a/A.java b/A.java\n--- a/A.java\n+++ b/A.java"));
+  }
+
+  @Test
+  public void keepsContentThatOnlyLooksLikeAnIndexLine() throws IOException {
+    assertThat(filter("diff\n+index foo\nindex 226fa5b..bd372b0\nindex\n"), is("diff\n+index foo\nindex 226fa5b..bd372b0\nindex"));
+  }
+
+  @Test
+  public void keepsCarriageReturnsAndBlankLines() throws IOException {
+    assertThat(filter("diff\r\n\n+a\r\n\n"), is("diff\r\n\n+a\r\n"));
+  }
+
+  @Test
+  public void dropsATrailingCarriageReturnWithTheNewline() throws IOException {
+    assertThat(filter("diff\r\n+a\r\n"), is("diff\r\n+a"));
+    assertThat(filter("diff\r\n+a\r"), is("diff\r\n+a"));
+    assertThat(filter("diff\r\n+a\r\r\n"), is("diff\r\n+a\r"));
+  }
+
+  @Test
+  public void hashesLikeTheOldStringHash() {
+    String[] diffs = {
+      "diff --git a/A.java b/A.java\nindex 226fa5b..bd372b0 100644\n--- a/A.java\n+++ b/A.java\n@@ -1 +1 @@\n-a\n+b\n",
+      // crlf files, including an index line that the old regex didn't match
+      "diff --git a/A.bat b/A.bat\r\nindex 226fa5b..bd372b0 100644\r\n--- a/A.bat\r\n+++ b/A.bat\r\n@@ -1 +1 @@\r\n-a\r\n+b\r\n",
+      "diff\n+a\r",
+      "diff\n+a\r\n\n",
+    };
+    for (String diff : diffs) {
+      assertThat(diff, ReviewCommand.hashDiff(gitWithDiff(diff.getBytes(UTF_8)), "A", true)[1], is(oldHash(diff.getBytes(UTF_8))));
+    }
+    // a latin-1 file's bytes aren't valid utf-8, and became U+FFFD when the diff was a String
+    byte[] latin1 = "diff --git a/A.txt b/A.txt\nindex 226fa5b..bd372b0 100644\n@@ -1 +1 @@\n-caf\u00e9\n+na\u00efve \u00e0 \u00ff\n"
+      .getBytes(StandardCharsets.ISO_8859_1);
+    assertThat(ReviewCommand.hashDiff(gitWithDiff(latin1), "A", true)[1], is(oldHash(latin1)));
+  }
+
+  @Test
+  public void handlesLinesSplitAcrossWrites() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new IndexLineFilter(bytes)) {
+      for (String part : new String[] { "diff --git a/A.java b/A.java\nind", "ex 226fa5b..bd3", "72b0 100644\n--- a/A.java" }) {
+        out.write(part.getBytes(UTF_8));
+      }
+    }
+    assertThat(new String(bytes.toByteArray(), UTF_8), is("diff --git a/A.java b/A.java\n--- a/A.java"));
+  }
+
+  /** The hash from before the diff was streamed, when it was read into a String and chomped. */
+  private static String oldHash(byte[] diff) {
+    String s = chomp(new String(diff, UTF_8));
+    s = Pattern.compile("\nindex \\w+\\.\\.\\w+ \\d+\n").matcher(s).replaceAll("\n");
+    return Hashing.sha1().hashString(s, UTF_8).toString();
+  }
+
+  private static Git gitWithDiff(byte[] diff) {
+    Git git = mock(Git.class);
+    doAnswer(i -> {
+      // in small writes, so characters and line endings are split across them
+      OutputStream out = i.getArgument(1);
+      for (int off = 0; off < diff.length; off += 3) {
+        out.write(diff, off, Math.min(3, diff.length - off));
+      }
+      return null;
+    }).when(git).writeDiff(eq("A"), any(OutputStream.class));
+    return git;
+  }
+
+  private static String filter(String diff) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new IndexLineFilter(bytes)) {
+      out.write(diff.getBytes(UTF_8));
+    }
+    return new String(bytes.toByteArray(), UTF_8);
+  }
+
+}
@@ -1,16 +1,22 @@
 package reviewbranch.commands;
 
-import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.jooq.lambda.Seq;
 import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
 import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
 
 public class MergeApprovedCommandTest {
@@ -18,6 +24,12 @@ public class MergeApprovedCommandTest {
   private final Git git = mock(Git.class);
   private final ReviewBoard rb = mock(ReviewBoard.class);
 
+  @Before
+  public void before() {
+    when(git.getBase()).thenReturn("origin/master");
+    when(git.getLocalBranches()).thenReturn(new ArrayList<>());
+  }
+
   @After
   public void after() {
     verifyNoMoreInteractions(git, rb);
@@ -28,17 +40,35 @@ public class MergeApprovedCommandTest {
     // given we want to merge two commits
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
     // and they have both been approved
-    when(git.getCurrentCommitMessage()).thenReturn("CommitA.\nA=foo", "CommitB.\nA=bar");
+    when(git.getCommitMessage("commitA")).thenReturn("CommitA.\nA=foo");
+    when(git.getCommitMessage("commitB")).thenReturn("CommitB.\nA=bar");
+    when(git.getCurrentBranch()).thenReturn("branch1");
     // when ran
     new MergeApprovedCommand().run(git, rb);
     // then we look at each commit
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
-    // and merge through commitB
-    verify(git).checkout("master");
-    verify(git).mergeFf("commitB");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    // and move master through commitB, without checking it out
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("master", "commitB");
+  }
+
+  @Test
+  public void mergeIntoCheckedOutMaster() {
+    // given we're on master with an approved commit
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    when(git.getCommitMessage("commitA")).thenReturn("CommitA.\nA=foo");
+    when(git.getCurrentBranch()).thenReturn("master");
+    // when ran
+    new MergeApprovedCommand().run(git, rb);
+    // then we merge it into the checkout
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getCommitMessage("commitA");
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).mergeFf("commitA");
   }
 
   @Test
@@ -46,18 +76,21 @@ public class MergeApprovedCommandTest {
     // given we want to merge three commits
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB", "commitC").toList());
     // but only the first and third have been approved
-    when(git.getCurrentCommitMessage()).thenReturn("CommitA.\nA=foo", "CommitB.\nA=", "CommitC.\nA=foo");
+    when(git.getCommitMessage("commitA")).thenReturn("CommitA.\nA=foo");
+    when(git.getCommitMessage("commitB")).thenReturn("CommitB.\nA=");
+    when(git.getCommitMessage("commitC")).thenReturn("CommitC.\nA=foo");
+    when(git.getCurrentBranch()).thenReturn("branch1");
     // when ran
     new MergeApprovedCommand().run(git, rb);
     // then we look at each commit
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git).getNote("reviewid");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    verify(git).getNote("reviewid", "commitB");
     // and only merge through commitA
-    verify(git).checkout("master");
-    verify(git).mergeFf("commitA");
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("master", "commitA");
   }
 
   @Test
@@ -65,17 +98,130 @@ public class MergeApprovedCommandTest {
     // given we want to merge two commits
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
     // but neither are approved
-    when(git.getCurrentCommitMessage()).thenReturn("CommitA.\nA=", "CommitB.\nA=");
+    when(git.getCommitMessage("commitA")).thenReturn("CommitA.\nA=");
+    when(git.getCommitMessage("commitB")).thenReturn("CommitB.\nA=");
     // when ran
     new MergeApprovedCommand().run(git, rb);
     // then we look at the first commit
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getCurrentCommitMessage();
-    // but bail and go back to commitB
-    verify(git).resetHard("commitB");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getNote("reviewid", "commitA");
+    // but bail without having moved HEAD
+  }
+
+  @Test
+  public void mergeApprovedPrefixFromRbStatus() {
+    // given three commits with RBs, where only the first and third have a ship it
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB", "commitC").toList());
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1", "commitB", "2", "commitC", "3"));
+    when(rb.isApproved("1")).thenReturn(true);
+    when(rb.isApproved("2")).thenReturn(false);
+    when(rb.isApproved("3")).thenReturn(true);
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    // when ran against RB's status
+    MergeApprovedCommand command = new MergeApprovedCommand();
+    command.rbStatus = true;
+    command.jobs = 1;
+    command.run(git, rb);
+    // then we look up the RBs
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    verify(git).getCommitMessage("commitC");
+    verify(rb).isApproved("1");
+    verify(rb).isApproved("2");
+    // (commitC's lookup may or may not have started by the time we stop)
+    verify(rb, atMost(1)).isApproved("3");
+    // and only merge through commitA
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("master", "commitA");
+  }
+
+  @Test
+  public void treatAnRbThatFailsToLoadAsNotApproved() {
+    // given the second commit's RB can't be read
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1", "commitB", "2"));
+    when(rb.isApproved("1")).thenReturn(true);
+    when(rb.isApproved("2")).thenThrow(new IllegalStateException("ReviewBoard failed"));
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    // when ran against RB's status
+    MergeApprovedCommand command = new MergeApprovedCommand();
+    command.rbStatus = true;
+    command.run(git, rb);
+    // then we still merge through commitA
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    verify(rb).isApproved("1");
+    verify(rb).isApproved("2");
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("master", "commitA");
+  }
+
+  @Test
+  public void timeOutAllTheLookupsTogether() {
+    // given two RBs that each take most of the timeout to look up, one after the other
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    when(git.getNotes("reviewid")).thenReturn(notes("commitA", "1", "commitB", "2"));
+    when(rb.isApproved("1")).thenAnswer(i -> slowlyApproved());
+    when(rb.isApproved("2")).thenAnswer(i -> slowlyApproved());
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    // when ran against RB's status
+    MergeApprovedCommand command = new MergeApprovedCommand();
+    command.rbStatus = true;
+    command.jobs = 1;
+    command.timeoutSeconds = 1;
+    command.run(git, rb);
+    // then commitB's status wasn't back in time
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getCommitMessage("commitA");
+    verify(git).getCommitMessage("commitB");
+    verify(rb).isApproved("1");
+    verify(rb, atMost(1)).isApproved("2");
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("master", "commitA");
   }
 
+  @Test
+  public void mergeIntoConfiguredBase() {
+    // given our base is origin/main, and we have an approved commit
+    when(git.getBase()).thenReturn("origin/main");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    when(git.getCommitMessage("commitA")).thenReturn("CommitA.\nA=foo");
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    // when ran
+    new MergeApprovedCommand().run(git, rb);
+    // then we move main instead of master
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getCommitMessage("commitA");
+    verifyBaseBranch();
+    verify(git).getCurrentBranch();
+    verify(git).fastForward("main", "commitA");
+  }
+
+  private void verifyBaseBranch() {
+    verify(git).getBase();
+    verify(git).getLocalBranches();
+  }
+
+  private static boolean slowlyApproved() throws InterruptedException {
+    Thread.sleep(800);
+    return true;
+  }
+
+  private static NotesSnapshot notes(String... commitsAndNotes) {
+    Map<String, String> notes = new HashMap<>();
+    for (int i = 0; i < commitsAndNotes.length; i += 2) {
+      notes.put(commitsAndNotes[i], commitsAndNotes[i + 1]);
+    }
+    return new NotesSnapshot(notes);
+  }
 
 }
@@ -0,0 +1,115 @@
+package reviewbranch.commands;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RefWatcherTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+  private File gitDir;
+  private RefWatcher watcher;
+
+  @Before
+  public void before() throws IOException {
+    gitDir = folder.getRoot();
+    write("HEAD", "ref: refs/heads/branch1");
+    write("refs/heads/branch1", "commitA");
+    watcher = new RefWatcher(gitDir, gitDir, 50);
+  }
+
+  @After
+  public void after() throws IOException {
+    watcher.close();
+  }
+
+  @Test
+  public void wakeUpWhenABranchMoves() throws Exception {
+    CompletableFuture<Void> change = awaitChange();
+    // the index isn't a ref
+    write("index", "...");
+    Thread.sleep(200);
+    assertThat(change.isDone(), is(false));
+    // but a new branch in a new directory is
+    write("refs/heads/feature/foo", "commitB");
+    change.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void waitForRebasesToFinish() throws Exception {
+    // given a rebase is in progress
+    write("rebase-merge/head-name", "refs/heads/branch1");
+    CompletableFuture<Void> change = awaitChange();
+    // when it moves HEAD
+    write("HEAD", "commitB");
+    Thread.sleep(200);
+    assertThat(change.isDone(), is(false));
+    // then we wait until it's done
+    new File(gitDir, "rebase-merge/head-name").delete();
+    new File(gitDir, "rebase-merge").delete();
+    write("refs/heads/branch1", "commitB");
+    change.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void ignoreOurOwnWorkTreeBranches() throws Exception {
+    CompletableFuture<Void> change = awaitChange();
+    // our uploads move our worktrees' branches
+    write("refs/heads/review-branch-wt", "commitB");
+    write("refs/heads/review-branch-wt2", "commitC");
+    Thread.sleep(200);
+    assertThat(change.isDone(), is(false));
+    // but not the user's
+    write("refs/heads/branch1", "commitB");
+    change.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void watchALinkedWorkTreesHeadAndRebases() throws Exception {
+    // given we're in a linked worktree, whose HEAD and rebase state are in its own dir
+    write("worktrees/wt1/HEAD", "ref: refs/heads/branch2");
+    write("worktrees/wt1/rebase-apply/next", "1");
+    watcher.close();
+    watcher = new RefWatcher(gitDir, new File(gitDir, "worktrees/wt1"), 50);
+    CompletableFuture<Void> change = awaitChange();
+    // when its rebase moves HEAD
+    write("worktrees/wt1/HEAD", "commitB");
+    Thread.sleep(200);
+    assertThat(change.isDone(), is(false));
+    // then we wait until it's done
+    new File(gitDir, "worktrees/wt1/rebase-apply/next").delete();
+    new File(gitDir, "worktrees/wt1/rebase-apply").delete();
+    write("worktrees/wt1/HEAD", "commitC");
+    change.get(5, TimeUnit.SECONDS);
+  }
+
+  private CompletableFuture<Void> awaitChange() {
+    return CompletableFuture.runAsync(() -> {
+      try {
+        watcher.awaitChange();
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  private void write(String path, String contents) throws IOException {
+    File file = new File(gitDir, path);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), (contents + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -3,35 +3,78 @@ package reviewbranch.commands;
 import static com.google.common.base.Charsets.UTF_8;
 import static java.util.Optional.empty;
 import static java.util.Optional.of;
-import static org.mockito.Mockito.atLeast;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.times;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.jooq.lambda.Seq;
 import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.google.common.base.Joiner;
 import com.google.common.hash.Hashing;
 
 import reviewbranch.apis.Git;
+import reviewbranch.apis.NotesSnapshot;
 import reviewbranch.apis.ReviewBoard;
 
-@SuppressWarnings("unchecked")
 public class ReviewCommandTest {
 
   private final Git git = mock(Git.class);
   private final ReviewBoard rb = mock(ReviewBoard.class);
+  // uploads happen from a worktree
+  private final Git wtGit = mock(Git.class);
+  private final ReviewBoard wtRb = mock(ReviewBoard.class);
   private final ReviewCommand args = new ReviewCommand();
+  private final Map<String, String> reviewIds = new HashMap<>();
+  private final Map<String, String> lastDiffHashes = new HashMap<>();
+  @Rule
+  public final TemporaryFolder gitDir = new TemporaryFolder();
+
+  @Before
+  public void before() {
+    when(git.getNotes("reviewid")).thenAnswer(i -> new NotesSnapshot(reviewIds));
+    when(git.getNotes("reviewlasthash")).thenAnswer(i -> new NotesSnapshot(lastDiffHashes));
+    when(git.getGitDir()).thenReturn(gitDir.getRoot());
+    when(git.getTreeId(anyString())).thenAnswer(i -> "tree-" + i.getArgument(0));
+    when(git.addWorkTree(any(File.class), anyString())).thenReturn(wtGit);
+    when(rb.inWorkTree(any(File.class))).thenReturn(wtRb);
+  }
 
   @After
   public void after() {
-    verifyNoMoreInteractions(git, rb);
+    // the diff index is loaded from the git dir
+    verify(git, atLeastOnce()).getGitDir();
+    // and the excludes are read once per run
+    verify(git).getExcludes();
+    verifyNoMoreInteractions(git, rb, wtGit, wtRb);
   }
 
   @Test
@@ -39,48 +82,93 @@ public class ReviewCommandTest {
     // given we want to review one new commit
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
-    when(git.getNote("reviewid")).thenReturn(Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    stubDiff("commitA", diffA);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
     // when ran
     run();
     // then we post a new RB for the current commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).getCurrentCommitMessage();
-    verify(git).getCurrentDiff();
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", Hashing.sha1().hashString(diffAWithoutIndexLine, UTF_8).toString());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffA));
   }
 
   @Test
   public void shouldNotCreateRbForWipCommits() {
     // given we have a commit with "wip:" prefix on its commit message, we don't want to make an RB.
     when(git.getCurrentBranch()).thenReturn("branch1");
-    when(git.getCurrentCommitMessage()).thenReturn("wip: refactoring city");
+    when(git.getCommitMessage("commitA")).thenReturn("wip: refactoring city");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
-    when(git.getNote("reviewid")).thenReturn(Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    stubDiff("commitA", diffA);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
     // when ran
     run();
     // then we should not have a new RB
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).getCurrentCommitMessage();
-    verify(git).getCurrentDiff();
-    verify(rb, times(0)).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
-    verify(git, times(0)).setNote("reviewid", "1");
-    verify(git, times(0)).setNote("reviewlasthash", Hashing.sha1().hashString(diffAWithoutIndexLine, UTF_8).toString());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verify(git).getCommitMessage("commitA");
+    verify(wtRb, times(0)).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(git, times(0)).setNote("reviewid", "commitA", "1");
+    verify(git, times(0)).setNote("reviewlasthash", "commitA", fingerprint(diffA));
+  }
+
+  @Test
+  public void skipFixupCommitsWithoutDiffingThem() {
+    // given a fixup commit on top of a new commit
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    when(git.getCommitMessage("commitB")).thenReturn("fixup! commitA");
+    stubDiff("commitA", diffA);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    // when ran
+    run();
+    // then only the 1st commit is diffed and uploaded
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(git).getCommitMessage("commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffA));
+  }
+
+  @Test
+  public void skipCommitsThatOnlyTouchSkippedPaths() {
+    // given a commit that only changes docs, and we skip those
+    args.skipPaths = "docs/**,*.md";
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    Map<String, Long> paths = new HashMap<>();
+    paths.put("README.md", 10L);
+    paths.put("docs/guide/setup.txt", 20L);
+    when(git.getChangedPaths("commitA")).thenReturn(paths);
+    // when ran
+    run();
+    // then we don't diff it
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verify(git).getCommitMessage("commitA");
+    verify(git).getChangedPaths("commitA");
   }
 
   @Test
@@ -88,22 +176,24 @@ public class ReviewCommandTest {
     // given we want to update one commit
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
-    when(git.getNote("reviewid")).thenReturn(Optional.of("1"));
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.of(diffAWithoutIndexLine));
-    when(git.getCurrentDiff()).thenReturn(diffB);
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", diffAWithoutIndexLine);
+    stubDiff("commitA", diffB);
     // when ran
     run();
     // then we post an update to RB for the current commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).getCurrentCommitMessage();
-    verify(git).getCurrentDiff();
-    verify(rb).updateRbForCurrentCommit(args, "1", Optional.empty());
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", sha1(diffBWithoutIndexLine));
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", Optional.empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffBWithoutIndexLine));
   }
 
   @Test
@@ -111,31 +201,31 @@ public class ReviewCommandTest {
     // given we want to review two new commits
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
-    // commitA
-    when(git.getNote("reviewid")).thenReturn(Optional.empty(), Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.empty(), Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA, diffB);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
-    when(rb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
     // when ran
     run();
     // then we post a new RB for the current commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git, atLeast(2)).getNote("reviewid");
-    verify(git, atLeast(2)).getNote("reviewlasthash");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
-    verify(git, atLeast(2)).getCurrentDiff();
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
     // commitA
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", sha1(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
     // commitB
-    verify(git).setNote("reviewid", "2");
-    verify(git).setNote("reviewlasthash", sha1(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
   }
 
   @Test
@@ -143,27 +233,246 @@ public class ReviewCommandTest {
     // given we want to review two commits
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
-    // and the first one already has an id and unchanged tree hash
-    when(git.getNote("reviewid")).thenReturn(Optional.of("1"), Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.of(sha1(diffAWithoutIndexLine)), Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA, diffB);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
-    when(rb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    // and the first one already has an id, and an unchanged diff hash from before fingerprints
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", sha1(diffAWithoutIndexLine));
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
     // when ran
     run();
-    // then we post a new RB for the 2nd commit
+    // then we post a new RB for the 2nd commit, without ever checking out the 1st
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git, atLeast(2)).getNote("reviewid");
-    verify(git, atLeast(2)).getNote("reviewlasthash");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
-    verify(git, atLeast(2)).getCurrentDiff();
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
     // commitB
-    verify(git).setNote("reviewid", "2");
-    verify(git).setNote("reviewlasthash", sha1(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+  }
+
+  @Test
+  public void skipCommitsThatOnlyTouchExcludedPaths() {
+    // given a commit that only regenerates a lockfile, which we exclude
+    when(git.getExcludes()).thenReturn(Arrays.asList("package-lock.json"));
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    when(git.getChangedPaths("commitA")).thenReturn(new HashMap<>());
+    // when ran
+    run();
+    // then we don't diff or upload it
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verify(git).getCommitMessage("commitA");
+    verify(git).getChangedPaths("commitA");
+  }
+
+  @Test
+  public void rediffIndexedTreesWhenTheExcludesChange() throws IOException {
+    // given a commit whose trees we uploaded before, without any excludes
+    when(git.getExcludes()).thenReturn(Arrays.asList("vendor/"));
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    when(git.getChangedPaths("commitA")).thenReturn(Seq.of("A.java").toMap(p -> p, p -> 10L));
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", fingerprint(diffA));
+    File index = gitDir.newFolder("review-branch");
+    Files.write(new File(index, "diff-index").toPath(), Seq.of("tree-commitA^..tree-commitA " + fingerprint(diffA) + " 1").toList());
+    stubDiff("commitA", diffA);
+    // when ran
+    run();
+    // then we diff it again, since the excludes could change it, but skip it as it's the same
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verify(git).getChangedPaths("commitA");
+    verifyReadsOf("commitA");
+  }
+
+  @Test
+  public void updateRbIfItsChangeMovedWithinAFile() {
+    // given a commit was reviewed, and then its added lines were moved further down the file
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", fingerprint(diffA));
+    String moved = diffA.replace("@@ -3,6 +3,7 @@", "@@ -13,6 +13,7 @@");
+    stubDiff("commitA", moved);
+    // when ran
+    run();
+    // then we upload it again
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", Optional.empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(moved));
+  }
+
+  @Test
+  public void skipRbIfItsUnchangedSinceAnOlderFingerprint() {
+    // given a commit was reviewed when fingerprints didn't include hunk positions
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", fingerprint(diffA, false));
+    stubDiff("commitA", diffA);
+    // when ran
+    run();
+    // then we don't upload it again
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verifyReadsOf("commitA");
+  }
+
+  @Test
+  public void skipRbWithoutDiffingIfItsTreesAreIndexed() throws IOException {
+    // given we want to review one commit
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", sha1(diffAWithoutIndexLine));
+    // and we've uploaded its parent tree and tree before
+    File index = gitDir.newFolder("review-branch");
+    Files.write(new File(index, "diff-index").toPath(), Seq.of("tree-commitA^..tree-commitA " + sha1(diffAWithoutIndexLine) + " 1").toList());
+    // when ran
+    run();
+    // then we skip it without generating its diff
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    verify(git).getCommitMessage("commitA");
+    verify(git).getTreeId("commitA^");
+    verify(git).getTreeId("commitA");
+  }
+
+  @Test
+  public void reattachRbByPatchIdWhenNotesAreLost() throws IOException {
+    // given a commit was reviewed, and then rebased without carrying its notes over
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    stubDiff("commitA", diffA);
+    // but we indexed its patch id when we uploaded it
+    File index = gitDir.newFolder("review-branch");
+    Files.write(new File(index, "patch-ids").toPath(), Seq.of("patchA 1 " + fingerprint(diffA)).toList());
+    when(git.getPatchIds(Arrays.asList("commitA"))).thenReturn(Seq.of("commitA").toMap(rev -> rev, rev -> "patchA"));
+    // when ran
+    run();
+    // then we put its notes back instead of creating a new RB
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyReadsOf("commitA");
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffA));
+  }
+
+  @Test
+  public void dontReattachRbsWhoseCommitIsMerged() throws IOException {
+    // given a commit has the same patch as one whose RB has already been merged, e.g. a revert's revert
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
+    stubDiff("commitA", diffA);
+    File index = gitDir.newFolder("review-branch");
+    long now = System.currentTimeMillis() / 1000;
+    Files.write(new File(index, "patch-ids").toPath(), Seq.of("patchA 1 " + fingerprint(diffA) + " mergedA " + now).toList());
+    when(git.getPatchIds(Arrays.asList("commitA"))).thenReturn(Seq.of("commitA").toMap(rev -> rev, rev -> "patchA"));
+    when(git.isMerged("mergedA")).thenReturn(true);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("2");
+    // when ran
+    run();
+    // then we post a new RB instead of re-attaching it to the merged one
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).isMerged("mergedA");
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(git).setNote("reviewid", "commitA", "2");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffA));
+    // and index the patch under the new RB
+    List<String> lines = Files.readAllLines(new File(index, "patch-ids").toPath());
+    assertThat(lines.size(), is(1));
+    assertThat(lines.get(0), startsWith("patchA 2 " + fingerprint(diffA) + " commitA "));
+  }
+
+  @Test
+  public void dropPatchIdsThatHaveNotBeenUploadedToInAWhile() throws IOException {
+    // given an index entry from long ago
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.<String> of().toList());
+    File index = gitDir.newFolder("review-branch");
+    long old = System.currentTimeMillis() / 1000 - TimeUnit.DAYS.toSeconds(PatchIdIndex.maxAgeDays + 1);
+    Files.write(new File(index, "patch-ids").toPath(), Seq.of("patchA 1 hashA commitA " + old).toList());
+    // when ran
+    run();
+    // then it's dropped
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).flushNotes();
+    assertThat(Files.readAllLines(new File(index, "patch-ids").toPath()).size(), is(0));
+  }
+
+  @Test
+  public void onlyCheckOutChangedCommits() {
+    // given we want to review two commits
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    // and only the first one has a new tree hash
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", diffA);
+    reviewIds.put("commitB", "2");
+    lastDiffHashes.put("commitB", sha1(diffBWithoutIndexLine));
+    stubDiff("commitA", diffA + "2");
+    stubDiff("commitB", diffB);
+    // when ran
+    run();
+    // then we update the 1st RB
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine + "2"));
   }
 
   @Test
@@ -172,29 +481,32 @@ public class ReviewCommandTest {
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
     // and the first one already has an id but has a new tree hash
-    when(git.getNote("reviewid")).thenReturn(Optional.of("1"), empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.of(diffA), empty());
-    when(git.getCurrentDiff()).thenReturn(diffA + "2", diffB);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
-    when(rb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", diffA);
+    stubDiff("commitA", diffA + "2");
+    stubDiff("commitB", diffB);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
     // when ran
     run();
     // then we post a new RB for the 2nd commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git, atLeast(2)).getNote("reviewid");
-    verify(git, atLeast(2)).getNote("reviewlasthash");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
-    verify(git, atLeast(2)).getCurrentDiff();
-    verify(rb).updateRbForCurrentCommit(args, "1", empty());
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", empty());
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
     // and update both commits' notes
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", sha1(diffAWithoutIndexLine + "2"));
-    verify(git).setNote("reviewid", "2");
-    verify(git).setNote("reviewlasthash", sha1(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine + "2"));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
   }
 
   @Test
@@ -203,29 +515,105 @@ public class ReviewCommandTest {
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
     // and the first one it's notes rebased together with another commit
-    when(git.getNote("reviewid")).thenReturn(Optional.of("1\n\n3"), empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.of("tree1\n\ntree3"), Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA + "2", diffB);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
-    when(rb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    reviewIds.put("commitA", "1\n\n3");
+    lastDiffHashes.put("commitA", "tree1\n\ntree3");
+    stubDiff("commitA", diffA + "2");
+    stubDiff("commitB", diffB);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
     // when ran
     run();
     // then we post a new RB for the 2nd commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).resetHard("commitB");
-    verify(git, atLeast(2)).getNote("reviewid");
-    verify(git, atLeast(2)).getNote("reviewlasthash");
-    verify(git, atLeast(2)).getCurrentCommitMessage();
-    verify(git, atLeast(2)).getCurrentDiff();
-    verify(rb).updateRbForCurrentCommit(args, "1", empty());
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", empty());
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
     // and update both commits' notes
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", sha1(diffAWithoutIndexLine + "2"));
-    verify(git).setNote("reviewid", "2");
-    verify(git).setNote("reviewlasthash", sha1(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine + "2"));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+  }
+
+  @Test
+  public void flushNotesIfALaterUploadFails() {
+    // given we want to review two new commits
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    // and the 2nd upload fails
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenThrow(new IllegalStateException("git failed"));
+    // when ran
+    try {
+      run();
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    // then we still record the 1st commit's RB
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
+  }
+
+  @Test
+  public void resumeWithoutRedoingFinishedCommits() throws IOException {
+    // given a run was killed after uploading commitA and hashing commitB, before it wrote any notes
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    File journal = new File(gitDir.newFolder("review-branch"), "review.journal");
+    Files.write(journal.toPath(), Arrays.asList(
+      "commitA hashed hashA",
+      "commitA uploaded 1 hashA -",
+      "commitB hashed hashB"), UTF_8);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    // when resumed
+    args.resume = true;
+    run();
+    // then commitA's RB is recorded without uploading it again
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verify(git).getCommitMessage("commitA");
+    verify(git).getTreeId("commitA^");
+    verify(git).getTreeId("commitA");
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", "hashA");
+    // and commitB is uploaded using its journaled hash, without diffing it again
+    verify(git).getCommitMessage("commitB");
+    verify(git).getTreeId("commitB^");
+    verify(git).getTreeId("commitB");
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", "hashB");
+    // and the journal is gone once we've finished
+    assertFalse(journal.exists());
   }
 
   @Test
@@ -235,25 +623,25 @@ public class ReviewCommandTest {
     // and have cherry picked it
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
     // so we don't have it's reviewid note
-    when(git.getNote("reviewid")).thenReturn(Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.empty());
-    when(git.getCurrentDiff()).thenReturn(diffA);
+    stubDiff("commitA", diffA);
     // but we have the reviewid in the commit message
-    when(git.getCurrentCommitMessage()).thenReturn("commitA\nRB=1");
+    when(git.getCommitMessage("commitA")).thenReturn("commitA\nRB=1");
     // when ran
     run();
     // then we post a update to the RB
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).getCurrentDiff();
-    verify(git).getCurrentCommitMessage();
-    verify(rb).updateRbForCurrentCommit(args, "1", Optional.empty());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", Optional.empty());
     // and update the commit notes
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", sha1(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
   }
 
   @Test
@@ -261,30 +649,252 @@ public class ReviewCommandTest {
     // given we want to review one new commit
     when(git.getCurrentBranch()).thenReturn("branch1");
     when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA").toList());
-    when(git.getNote("reviewid")).thenReturn(Optional.empty());
-    when(git.getNote("reviewlasthash")).thenReturn(Optional.empty());
-    when(git.getCurrentCommitMessage()).thenReturn("BUG=FOO-123");
-    when(git.getCurrentDiff()).thenReturn(diffA);
-    when(rb.createNewRbForCurrentCommit(args, "branch1", empty(), of("FOO-123"))).thenReturn("1");
+    when(git.getCommitMessage("commitA")).thenReturn("BUG=FOO-123");
+    stubDiff("commitA", diffA);
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), of("FOO-123"))).thenReturn("1");
     // when ran
     run();
     // then we post a new RB for the current commit
     verify(git).getCurrentBranch();
     verify(git).getRevisionsFromOriginMaster();
-    verify(git).resetHard("commitA");
-    verify(git).getNote("reviewid");
-    verify(git).getNote("reviewlasthash");
-    verify(git).getCurrentCommitMessage();
-    verify(git).getCurrentDiff();
-    verify(rb).createNewRbForCurrentCommit(args, "branch1", empty(), of("FOO-123"));
-    verify(git).setNote("reviewid", "1");
-    verify(git).setNote("reviewlasthash", Hashing.sha1().hashString(diffAWithoutIndexLine, UTF_8).toString());
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verifyReadsOf("commitA");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), of("FOO-123"));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffA));
+  }
+
+  @Test
+  public void uploadInParallelFromWorkTrees() {
+    // given we want to review three commits with two jobs
+    args.jobs = 2;
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB", "commitC").toList());
+    // and the first is a changed RB, and the other two are new
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", "old");
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    stubDiff("commitC", diffC);
+    File gitDir = this.gitDir.getRoot();
+    when(rb.canUpdateDependsOnAlone()).thenReturn(true);
+    when(wtRb.createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("1")), eq(empty()))).thenReturn("2");
+    when(wtRb.createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(empty()), eq(empty()))).thenReturn("3");
+    // when ran
+    run();
+    // then we read each commit without checking it out
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB", "commitC"));
+    verify(git).flushNotes();
+    verifyReadsOf("commitA", "commitB", "commitC");
+    // and set up two worktrees
+    verify(git, times(5)).getGitDir();
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt"), "review-branch-wt");
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt2"), "review-branch-wt2");
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt"));
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt2"));
+    verify(wtGit, times(2)).close();
+    verify(wtRb, times(2)).close();
+    // and upload each commit from a worktree
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", empty());
+    verify(wtRb).createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("1")), eq(empty()));
+    verify(wtRb).createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(empty()), eq(empty()));
+    // and then link the 3rd RB to the 2nd, once we know its id
+    verify(wtGit, times(2)).resetHard("commitC");
+    verify(rb).canUpdateDependsOnAlone();
+    verify(wtRb).updateDependsOnForCurrentCommit(args, "3", "2");
+    // and record all three RBs
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitC", "3");
+    verify(git).setNote("reviewlasthash", "commitC", fingerprint(diffCWithoutIndexLine));
+  }
+
+  @Test
+  public void createRbsAfterTheirParentWhenDependsOnCantBeSetAlone() {
+    // given we want to review three commits with two jobs, on a backend that would re-post a diff to set depends-on
+    args.jobs = 2;
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB", "commitC").toList());
+    // and the first is a changed RB, and the other two are new
+    reviewIds.put("commitA", "1");
+    lastDiffHashes.put("commitA", "old");
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    stubDiff("commitC", diffC);
+    File gitDir = this.gitDir.getRoot();
+    when(wtRb.createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("1")), eq(empty()))).thenReturn("2");
+    when(wtRb.createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("2")), eq(empty()))).thenReturn("3");
+    // when ran
+    run();
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB", "commitC"));
+    verify(git).flushNotes();
+    verifyReadsOf("commitA", "commitB", "commitC");
+    verify(git, times(5)).getGitDir();
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt"), "review-branch-wt");
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt2"), "review-branch-wt2");
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt"));
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt2"));
+    verify(wtGit, times(2)).close();
+    verify(wtRb, times(2)).close();
+    verify(rb).canUpdateDependsOnAlone();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verify(wtRb).updateRbForCurrentCommit(args, "1", empty());
+    verify(wtRb).createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("1")), eq(empty()));
+    // then the 3rd RB is only created once the 2nd's id is known, with its depends-on, and isn't uploaded twice
+    verify(wtGit).resetHard("commitC");
+    verify(wtRb).createNewRbForCurrentCommit(eq(args), eq("branch1"), eq(of("2")), eq(empty()));
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitC", "3");
+    verify(git).setNote("reviewlasthash", "commitC", fingerprint(diffCWithoutIndexLine));
+  }
+
+  @Test
+  public void reviewStackedBranchesOnce() {
+    // given branch2 is stacked on branch1
+    args.branches = "branch2,branch1";
+    when(git.getRevisionsFromOriginMaster("branch1")).thenReturn(Seq.of("commitA").toList());
+    when(git.getRevisionsFromOriginMaster("branch2")).thenReturn(Seq.of("commitA", "commitB").toList());
+    stubDiff("commitA", diffA);
+    stubDiff("commitB", diffB);
+    File gitDir = this.gitDir.getRoot();
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenReturn("1");
+    when(wtRb.createNewRbForCurrentCommit(args, "branch2", of("1"), empty())).thenReturn("2");
+    // when ran
+    run();
+    // then we list both branches
+    verify(git).getRevisionsFromOriginMaster("branch1");
+    verify(git).getRevisionsFromOriginMaster("branch2");
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    // but read each commit once
+    verifyReadsOf("commitA", "commitB");
+    // and upload each branch's own commits from its own worktree
+    verify(git, times(5)).getGitDir();
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt"), "review-branch-wt");
+    verify(git).addWorkTree(new File(gitDir, "review-branch/wt2"), "review-branch-wt2");
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt"));
+    verify(rb).inWorkTree(new File(gitDir, "review-branch/wt2"));
+    verify(wtGit, times(2)).close();
+    verify(wtRb, times(2)).close();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    // with branch2's first commit depending on branch1's RB
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch2", of("1"), empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+  }
+
+  @Test
+  public void hashNextCommitWhileUploading() {
+    // given we want to review two new commits
+    when(git.getCurrentBranch()).thenReturn("branch1");
+    when(git.getRevisionsFromOriginMaster()).thenReturn(Seq.of("commitA", "commitB").toList());
+    stubDiff("commitA", diffA);
+    CountDownLatch hashedB = new CountDownLatch(1);
+    doAnswer(i -> {
+      i.<OutputStream> getArgument(1).write(diffB.getBytes(UTF_8));
+      hashedB.countDown();
+      return null;
+    }).when(git).writeDiff(eq("commitB"), any(OutputStream.class));
+    // and the 1st upload only finishes once the 2nd commit has been diffed
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", empty(), empty())).thenAnswer(i -> {
+      if (!hashedB.await(10, TimeUnit.SECONDS)) {
+        fail("commitB wasn't diffed during the upload");
+      }
+      return "1";
+    });
+    when(wtRb.createNewRbForCurrentCommit(args, "branch1", of("1"), empty())).thenReturn("2");
+    // when ran
+    run();
+    // then both are uploaded, in order, with each commit read once
+    verify(git).getCurrentBranch();
+    verify(git).getRevisionsFromOriginMaster();
+    verify(git).getNotes("reviewid");
+    verify(git).getNotes("reviewlasthash");
+    verify(git).getPatchIds(Arrays.asList("commitA", "commitB"));
+    verify(git).flushNotes();
+    verifyWorkTree();
+    verify(wtGit).resetHard("commitA");
+    verify(wtGit).resetHard("commitB");
+    verifyReadsOf("commitA", "commitB");
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", empty(), empty());
+    verify(wtRb).createNewRbForCurrentCommit(args, "branch1", of("1"), empty());
+    verify(git).setNote("reviewid", "commitA", "1");
+    verify(git).setNote("reviewlasthash", "commitA", fingerprint(diffAWithoutIndexLine));
+    verify(git).setNote("reviewid", "commitB", "2");
+    verify(git).setNote("reviewlasthash", "commitB", fingerprint(diffBWithoutIndexLine));
+  }
+
+  private void verifyWorkTree() {
+    File dir = new File(gitDir.getRoot(), "review-branch/wt");
+    verify(git).addWorkTree(dir, "review-branch-wt");
+    verify(rb).inWorkTree(dir);
+    // and closed once the run is done with it
+    verify(wtGit).close();
+    verify(wtRb).close();
+  }
+
+  private void verifyReadsOf(String... revs) {
+    for (String rev : revs) {
+      verify(git).getCommitMessage(rev);
+      verify(git).getTreeId(rev + "^");
+      verify(git).getTreeId(rev);
+      verify(git).writeDiff(eq(rev), any(OutputStream.class));
+    }
+  }
+
+  private void stubDiff(String rev, String diff) {
+    doAnswer(i -> {
+      i.<OutputStream> getArgument(1).write(diff.getBytes(UTF_8));
+      return null;
+    }).when(git).writeDiff(eq(rev), any(OutputStream.class));
   }
 
   private static String sha1(String diff) {
     return Hashing.sha1().hashString(diff, UTF_8).toString();
   }
 
+  private static String fingerprint(String diff) {
+    return fingerprint(diff, true);
+  }
+
+  private static String fingerprint(String diff, boolean positions) {
+    DiffFingerprint fingerprint = new DiffFingerprint(positions);
+    try {
+      fingerprint.write(diff.getBytes(UTF_8));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    fingerprint.close();
+    return fingerprint.fingerprint();
+  }
+
   private void run() {
     args.run(git, rb);
   }
@@ -316,5 +926,7 @@ public class ReviewCommandTest {
 
   private static final String diffB = diffA.replace("A.java", "B.java");
   private static final String diffBWithoutIndexLine = diffAWithoutIndexLine.replace("A.java", "B.java");
+  private static final String diffC = diffA.replace("A.java", "C.java");
+  private static final String diffCWithoutIndexLine = diffAWithoutIndexLine.replace("A.java", "C.java");
 
 }